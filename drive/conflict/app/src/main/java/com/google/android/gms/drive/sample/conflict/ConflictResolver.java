@@ -18,11 +18,6 @@ import android.content.Intent;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
-import com.google.android.gms.auth.api.signin.GoogleSignIn;
-import com.google.android.gms.auth.api.signin.GoogleSignInAccount;
-import com.google.android.gms.auth.api.signin.GoogleSignInClient;
-import com.google.android.gms.auth.api.signin.GoogleSignInOptions;
-import com.google.android.gms.drive.Drive;
 import com.google.android.gms.drive.DriveContents;
 import com.google.android.gms.drive.DriveFile;
 import com.google.android.gms.drive.DriveId;
@@ -30,72 +25,86 @@ import com.google.android.gms.drive.DriveResourceClient;
 import com.google.android.gms.drive.ExecutionOptions;
 import com.google.android.gms.drive.MetadataChangeSet;
 import com.google.android.gms.drive.events.CompletionEvent;
-import com.google.android.gms.tasks.Continuation;
+import com.google.android.gms.tasks.Task;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 
 /**
- * ConflictResolver handles a CompletionEvent with a conflict status.
+ * ConflictResolver handles the CompletionEvents with a conflict status queued for one file.
+ *
+ * <p>Each event's local changes are merged in turn into the result of merging the ones before it,
+ * starting from the server contents, so that no event's changes are lost even if the later events
+ * do not build on them.</p>
  */
 class ConflictResolver {
     private static final String TAG = "ConflictResolver";
     static final String CONFLICT_RESOLVED =
             "com.google.android.gms.drive.sample.conflict.CONFLICT_RESOLVED";
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
 
     private LocalBroadcastManager mBroadcaster;
+    // The events to resolve, oldest first.
+    private List<CompletionEvent> mConflictedCompletionEvents;
     private CompletionEvent mConflictedCompletionEvent;
     private Context mContext;
     private DriveResourceClient mDriveResourceClient;
     private DriveContents mDriveContents;
-    private String mBaseContent;
-    private String mModifiedContent;
-    private String mServerContent;
-    private String mResolvedContent;
+    private MergeCache mMergeCache;
+    private InputStream mResolvedInputStream;
+    // Copies of versions which could not be hashed in place.
+    private final List<File> mTempFiles = new ArrayList<>();
+    private MergeStrategy mMergeStrategy = MergeStrategy.SET;
     private ExecutorService mExecutorService;
+    private Task<DriveResourceClient> mDriveResourceClientTask;
 
-    ConflictResolver(CompletionEvent conflictedCompletionEvent, Context context,
-            ExecutorService executorService) {
-        this.mConflictedCompletionEvent = conflictedCompletionEvent;
+    ConflictResolver(List<CompletionEvent> conflictedCompletionEvents, Context context,
+            ExecutorService executorService, Task<DriveResourceClient> driveResourceClientTask,
+            MergeCache mergeCache) {
+        this.mConflictedCompletionEvents = conflictedCompletionEvents;
+        // The latest event carries the metadata changes to commit.
+        this.mConflictedCompletionEvent =
+                conflictedCompletionEvents.get(conflictedCompletionEvents.size() - 1);
         mBroadcaster = LocalBroadcastManager.getInstance(context);
         mContext = context;
         mExecutorService = executorService;
+        mDriveResourceClientTask = driveResourceClientTask;
+        mMergeCache = mergeCache;
     }
 
     /**
-     * Initiate the resolution process by connecting the GoogleApiClient.
+     * Initiate the resolution process once the DriveResourceClient is signed in.
+     *
+     * @return A task which fails if the conflict could not be resolved. The caller dismisses the
+     *         event on success, or snoozes it to be retried later on failure.
      */
-    void resolve() {
+    Task<Void> resolve() {
         // [START drive_android_resolve_conflict]
-        // A new DriveResourceClient should be created to handle each new CompletionEvent since each
-        // event is tied to a specific user account. Any DriveFile action taken must be done using
-        // the correct account.
-        GoogleSignInOptions.Builder signInOptionsBuilder =
-                new GoogleSignInOptions.Builder(GoogleSignInOptions.DEFAULT_SIGN_IN)
-                        .requestScopes(Drive.SCOPE_FILE)
-                        .requestScopes(Drive.SCOPE_APPFOLDER);
-        if (mConflictedCompletionEvent.getAccountName() != null) {
-            signInOptionsBuilder.setAccountName(mConflictedCompletionEvent.getAccountName());
-        }
-        GoogleSignInClient signInClient =
-                GoogleSignIn.getClient(mContext, signInOptionsBuilder.build());
-        signInClient.silentSignIn()
-                .continueWith(mExecutorService,
-                        (Continuation<GoogleSignInAccount, Void>) signInTask -> {
-                            mDriveResourceClient = Drive.getDriveResourceClient(
-                                    mContext, signInTask.getResult());
-                            mBaseContent = ConflictUtil.getStringFromInputStream(
-                                    mConflictedCompletionEvent.getBaseContentsInputStream());
-                            mModifiedContent = ConflictUtil.getStringFromInputStream(
-                                    mConflictedCompletionEvent
-                                            .getModifiedContentsInputStream());
-                            return null;
+        // Each CompletionEvent is tied to a specific user account, and any DriveFile action taken
+        // must be done using the correct account. The DriveResourceClient for the event's account
+        // is signed in by ResolutionScheduler and shared by every event of that account.
+        return mDriveResourceClientTask
+                .continueWithTask(mExecutorService,
+                        clientTask -> {
+                            mDriveResourceClient = clientTask.getResult();
+                            DriveId driveId = mConflictedCompletionEvent.getDriveId();
+                            return mDriveResourceClient.getMetadata(driveId.asDriveResource());
                         })
                 .continueWithTask(mExecutorService,
                         task -> {
+                            // Each file may choose how its conflicts are merged.
+                            mMergeStrategy = MergeStrategy.forFile(task.getResult());
                             DriveId driveId = mConflictedCompletionEvent.getDriveId();
                             return mDriveResourceClient.openFile(
                                     driveId.asDriveFile(), DriveFile.MODE_READ_ONLY);
@@ -103,20 +112,14 @@ class ConflictResolver {
                 .continueWithTask(mExecutorService,
                         task -> {
                             mDriveContents = task.getResult();
-                            InputStream serverInputStream = task.getResult().getInputStream();
-                            mServerContent =
-                                    ConflictUtil.getStringFromInputStream(serverInputStream);
+                            mergeVersions();
                             return mDriveResourceClient.reopenContentsForWrite(mDriveContents);
                         })
                 .continueWithTask(mExecutorService,
                         task -> {
                             DriveContents contentsForWrite = task.getResult();
-                            mResolvedContent = ConflictUtil.resolveConflict(
-                                    mBaseContent, mServerContent, mModifiedContent);
-
-                            OutputStream outputStream = contentsForWrite.getOutputStream();
-                            try (Writer writer = new OutputStreamWriter(outputStream)) {
-                                writer.write(mResolvedContent);
+                            try (OutputStream out = contentsForWrite.getOutputStream()) {
+                                copy(mResolvedInputStream, out);
                             }
 
                             // It is not likely that resolving a conflict will result in another
@@ -139,17 +142,15 @@ class ConflictResolver {
                             return mDriveResourceClient.commitContents(contentsForWrite,
                                     modifiedMetadataChangeSet, executionOptions);
                 })
+                .addOnCompleteListener(mExecutorService, task -> cleanUp())
                 .addOnSuccessListener(aVoid -> {
-                    mConflictedCompletionEvent.dismiss();
                     Log.d(TAG, "resolved list");
-                    sendResult(mModifiedContent);
+                    sendResult();
                 })
                 .addOnFailureListener(e -> {
                     // The contents cannot be reopened at this point, probably due to
-                    // connectivity, so by snoozing the event we will get it again later.
-                    Log.d(TAG, "Unable to write resolved content, snoozing completion event.",
-                            e);
-                    mConflictedCompletionEvent.snooze();
+                    // connectivity. The caller snoozes the event so we will get it again later.
+                    Log.d(TAG, "Unable to write resolved content.", e);
                     if (mDriveContents != null) {
                         mDriveResourceClient.discardContents(mDriveContents);
                     }
@@ -158,13 +159,163 @@ class ConflictResolver {
     }
 
     /**
-     * Notify the UI that the list should be updated.
-     *
-     * @param resolution Resolved grocery list.
+     * Notify the UI that the list should be updated. The UI reloads the resolved list from Drive.
      */
-    private void sendResult(String resolution) {
+    private void sendResult() {
         Intent intent = new Intent(CONFLICT_RESOLVED);
-        intent.putExtra("conflictResolution", resolution);
         mBroadcaster.sendBroadcast(intent);
     }
+
+    /**
+     * Merges the changes of every event, in order, into the server contents and leaves the result
+     * in {@link #mResolvedInputStream}. The result is read from the merge cache instead if the
+     * same versions have been merged before, for example if the events were snoozed after an
+     * earlier attempt.
+     *
+     * <p>This must happen before the contents are reopened for write, since the server contents
+     * can no longer be read after that.</p>
+     */
+    private void mergeVersions() throws IOException {
+        // Every version is hashed in place through its file descriptor, which leaves the stream
+        // unread for the merge. The server stream belongs to mDriveContents, which must stay open
+        // to be reopened for write, so only a copy of it is closed here.
+        InputStream serverContents = mDriveContents.getInputStream();
+        List<InputStream> opened = new ArrayList<>();
+        try {
+            FileInputStream server = toFileStream(serverContents, "server");
+            if (server != serverContents) {
+                opened.add(server);
+            }
+            List<byte[]> digests = new ArrayList<>();
+            digests.add(digestOf(server));
+            List<FileInputStream> bases = new ArrayList<>();
+            List<FileInputStream> modifieds = new ArrayList<>();
+            for (CompletionEvent event : mConflictedCompletionEvents) {
+                FileInputStream base = null;
+                if (mMergeStrategy.usesBase()) {
+                    base = toFileStream(event.getBaseContentsInputStream(), "base");
+                    opened.add(base);
+                }
+                FileInputStream modified =
+                        toFileStream(event.getModifiedContentsInputStream(), "modified");
+                opened.add(modified);
+                bases.add(base);
+                modifieds.add(modified);
+                digests.add(base != null ? digestOf(base) : new byte[0]);
+                digests.add(digestOf(modified));
+            }
+
+            String mergeKey = MergeCache.keyOf(mMergeStrategy, digests);
+            mResolvedInputStream = mMergeCache.open(mergeKey);
+            if (mResolvedInputStream == null) {
+                mResolvedInputStream = mMergeCache.put(mergeKey,
+                        out -> mergeInOrder(bases, nonClosing(server), modifieds, out));
+            }
+        } finally {
+            for (InputStream in : opened) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to close merged version.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges {@code modifieds.get(i)}, based on {@code bases.get(i)}, into the result of merging
+     * the versions before it, starting from {@code server}, and writes the last result to {@code
+     * out}. Intermediate results are kept in temporary files.
+     */
+    private void mergeInOrder(List<FileInputStream> bases, InputStream server,
+            List<FileInputStream> modifieds, OutputStream out) throws IOException {
+        InputStream current = server;
+        try {
+            int last = modifieds.size() - 1;
+            for (int i = 0; i < last; i++) {
+                File merged = File.createTempFile("merged", null, mContext.getCacheDir());
+                mTempFiles.add(merged);
+                try (OutputStream mergedOut = new FileOutputStream(merged)) {
+                    mMergeStrategy.merge(bases.get(i), current, modifieds.get(i), mergedOut);
+                }
+                if (current != server) {
+                    current.close();
+                }
+                current = new FileInputStream(merged);
+            }
+            mMergeStrategy.merge(bases.get(last), current, modifieds.get(last), out);
+        } finally {
+            if (current != server) {
+                current.close();
+            }
+        }
+    }
+
+    /**
+     * Returns {@code in} if it reads from a file descriptor, which is the case for the streams of
+     * DriveContents and CompletionEvent, or else a stream over a temporary copy of it.
+     */
+    private FileInputStream toFileStream(InputStream in, String prefix) throws IOException {
+        if (in instanceof FileInputStream) {
+            return (FileInputStream) in;
+        }
+        File file = File.createTempFile(prefix, null, mContext.getCacheDir());
+        mTempFiles.add(file);
+        try (OutputStream out = new FileOutputStream(file)) {
+            copy(in, out);
+        }
+        return new FileInputStream(file);
+    }
+
+    private void cleanUp() {
+        if (mResolvedInputStream != null) {
+            try {
+                mResolvedInputStream.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close resolved contents.", e);
+            }
+        }
+        for (File file : mTempFiles) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Returns the digest of the bytes of {@code in} from its current position on, read with
+     * positional reads so that the stream's position does not change.
+     */
+    private static byte[] digestOf(FileInputStream in) throws IOException {
+        MessageDigest digest = MergeCache.newDigest();
+        FileChannel channel = in.getChannel();
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        long position = channel.position();
+        int count;
+        while ((count = channel.read(buffer, position)) != -1) {
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+            position += count;
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Returns a stream reading {@code in} which leaves it open when closed, so that the server
+     * contents can still be reopened for write after they are merged.
+     */
+    private static InputStream nonClosing(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+    }
 }
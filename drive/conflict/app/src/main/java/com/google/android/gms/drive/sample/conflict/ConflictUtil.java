@@ -17,10 +17,14 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 class ConflictUtil {
     /**
@@ -32,38 +36,99 @@ class ConflictUtil {
      * @return Items merged from three sets of items provided.
      */
     static String resolveConflict(String baseStr, String currentStr, String modifiedStr) {
-        List<String> baseItems = Arrays.asList(baseStr.split("\n"));
-        List<String> currentItems = Arrays.asList(currentStr.split("\n"));
-        List<String> modifiedItems = Arrays.asList(modifiedStr.split("\n"));
-        List<String> allItems = new ArrayList<>();
+        List<String> mergedItems = mergeItems(Arrays.asList(baseStr.split("\n")),
+                new LinkedHashSet<>(Arrays.asList(currentStr.split("\n"))),
+                new LinkedHashSet<>(Arrays.asList(modifiedStr.split("\n"))));
 
-        // Add unique items to allItems.
-        allItems.addAll(baseItems);
+        StringBuilder stringBuilder = new StringBuilder();
+        for (String item : mergedItems) {
+            stringBuilder.append(item);
+            stringBuilder.append("\n");
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Performs the same merge as {@link #resolveConflict(String, String, String)} on the contents
+     * as read by {@link #getStringFromInputStream}, reading the items from {@code base}, {@code
+     * current} and {@code modified} and writing the merged items to {@code out}. Only the
+     * distinct items are held in memory, never the contents as Strings.
+     *
+     * <p>Like {@link #getStringFromInputStream}, this ends items at {@code "\r\n"} and a lone
+     * {@code '\r'} as well as at {@code '\n'}, so a list with CRLF line endings is merged by its
+     * items alone and written back with LF line endings.</p>
+     */
+    static void resolveConflict(BufferedReader base, BufferedReader current,
+            BufferedReader modified, Writer out) throws IOException {
+        List<String> baseItems = new ArrayList<>();
+        readItems(base, baseItems);
+        Set<String> currentItems = new LinkedHashSet<>();
+        readItems(current, currentItems);
+        Set<String> modifiedItems = new LinkedHashSet<>();
+        readItems(modified, modifiedItems);
+
+        for (String item : mergeItems(baseItems, currentItems, modifiedItems)) {
+            out.write(item);
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Merges the items of three versions of a list.
+     *
+     * @param baseItems     Items local modifications are based on, in order.
+     * @param currentItems  Distinct items currently on the server, in the order first seen.
+     * @param modifiedItems Distinct locally modified items, in the order first seen.
+     * @return The base items kept by both sides, followed by the items added on either side.
+     */
+    private static List<String> mergeItems(List<String> baseItems, Set<String> currentItems,
+            Set<String> modifiedItems) {
+        Set<String> baseSet = new HashSet<>(baseItems);
+        List<String> mergedItems = new ArrayList<>();
+
+        // Skip items that were removed from currentItems or modifiedItems.
+        for (String item : baseItems) {
+            if (currentItems.contains(item) && modifiedItems.contains(item)) {
+                mergedItems.add(item);
+            }
+        }
         for (String item : currentItems) {
-            if (!allItems.contains(item)) {
-                allItems.add(item);
+            if (!baseSet.contains(item)) {
+                mergedItems.add(item);
             }
         }
         for (String item : modifiedItems) {
-            if (!allItems.contains(item)) {
-                allItems.add(item);
+            if (!baseSet.contains(item) && !currentItems.contains(item)) {
+                mergedItems.add(item);
             }
         }
+        return mergedItems;
+    }
 
-        // Remove items that were removed from currentItems or modifiedItems.
-        for (Iterator<String> iter = allItems.iterator(); iter.hasNext();) {
-            String item = iter.next();
-            if (baseItems.contains(item)
-                    && (!currentItems.contains(item) || !modifiedItems.contains(item))) {
-                iter.remove();
+    /**
+     * Adds each line read from {@code reader} to {@code items}, without its line terminator, and
+     * otherwise the same way as {@code String.split("\n")}: trailing empty lines are dropped, and
+     * empty content is a single empty item.
+     */
+    private static void readItems(BufferedReader reader, Collection<String> items)
+            throws IOException {
+        int pendingEmptyLines = 0;
+        boolean empty = true;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            empty = false;
+            if (line.isEmpty()) {
+                pendingEmptyLines++;
+                continue;
             }
+            for (; pendingEmptyLines > 0; pendingEmptyLines--) {
+                items.add("");
+            }
+            items.add(line);
         }
-        StringBuilder stringBuilder = new StringBuilder();
-        for (String item : allItems) {
-            stringBuilder.append(item);
-            stringBuilder.append("\n");
+        if (empty) {
+            items.add("");
         }
-        return stringBuilder.toString();
     }
 
     /**
@@ -0,0 +1,465 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.conflict;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A line-based three-way merge in the style of diff3.
+ *
+ * <p>The changes from the base version to each of the two other versions are computed with {@link
+ * LineDiff}. Changes which touch different parts of the base are both applied. Where the two
+ * versions change the same lines differently, both versions of those lines are kept between
+ * conflict markers. Unlike {@link ConflictUtil#resolveConflict}, line order and duplicate lines
+ * are preserved.</p>
+ */
+class Diff3Merge {
+    static final String MARKER_LOCAL = "<<<<<<< local\n";
+    static final String MARKER_SEPARATOR = "=======\n";
+    static final String MARKER_SERVER = ">>>>>>> server\n";
+
+    /**
+     * Merges the changes made in {@code currentStr} and {@code modifiedStr} relative to {@code
+     * baseStr}.
+     *
+     * @param baseStr     Content local modifications are based on.
+     * @param currentStr  Content currently on the server.
+     * @param modifiedStr Locally modified content.
+     * @return The merged content, with conflicting changes between conflict markers.
+     */
+    static String merge(String baseStr, String currentStr, String modifiedStr) {
+        Lines base = new Lines(baseStr);
+        Lines current = new Lines(currentStr);
+        Lines modified = new Lines(modifiedStr);
+
+        // Give equal lines equal IDs so the diffs compare integers rather than strings.
+        LineInterner interner = new LineInterner(
+                base.size() + current.size() + modified.size());
+        int[] baseIds = interner.intern(base);
+        List<LineDiff.Hunk> localHunks = LineDiff.diff(baseIds, interner.intern(modified));
+        List<LineDiff.Hunk> serverHunks = LineDiff.diff(baseIds, interner.intern(current));
+
+        StringBuilder result = new StringBuilder(Math.max(currentStr.length(),
+                modifiedStr.length()));
+        int basePos = 0;
+        int localIndex = 0;
+        int serverIndex = 0;
+        while (localIndex < localHunks.size() || serverIndex < serverHunks.size()) {
+            // Start a group with whichever pending hunk comes first in the base.
+            int groupStart;
+            int groupEnd;
+            if (serverIndex == serverHunks.size() || (localIndex < localHunks.size()
+                    && localHunks.get(localIndex).baseStart
+                            <= serverHunks.get(serverIndex).baseStart)) {
+                groupStart = localHunks.get(localIndex).baseStart;
+                groupEnd = localHunks.get(localIndex).baseEnd;
+            } else {
+                groupStart = serverHunks.get(serverIndex).baseStart;
+                groupEnd = serverHunks.get(serverIndex).baseEnd;
+            }
+
+            // Extend the group with every hunk from either side which overlaps or touches it.
+            int localEnd = localIndex;
+            int serverEnd = serverIndex;
+            boolean extended = true;
+            while (extended) {
+                extended = false;
+                while (localEnd < localHunks.size()
+                        && localHunks.get(localEnd).baseStart <= groupEnd) {
+                    groupEnd = Math.max(groupEnd, localHunks.get(localEnd).baseEnd);
+                    localEnd++;
+                    extended = true;
+                }
+                while (serverEnd < serverHunks.size()
+                        && serverHunks.get(serverEnd).baseStart <= groupEnd) {
+                    groupEnd = Math.max(groupEnd, serverHunks.get(serverEnd).baseEnd);
+                    serverEnd++;
+                    extended = true;
+                }
+            }
+
+            base.appendTo(result, basePos, groupStart);
+            List<LineDiff.Hunk> localGroup = localHunks.subList(localIndex, localEnd);
+            List<LineDiff.Hunk> serverGroup = serverHunks.subList(serverIndex, serverEnd);
+            if (serverGroup.isEmpty()) {
+                appendVersion(result, base, modified, localGroup, groupStart, groupEnd);
+            } else if (localGroup.isEmpty()) {
+                appendVersion(result, base, current, serverGroup, groupStart, groupEnd);
+            } else {
+                StringBuilder local = new StringBuilder();
+                appendVersion(local, base, modified, localGroup, groupStart, groupEnd);
+                StringBuilder server = new StringBuilder();
+                appendVersion(server, base, current, serverGroup, groupStart, groupEnd);
+                if (local.toString().equals(server.toString())) {
+                    // Both sides made the same change.
+                    result.append(local);
+                } else {
+                    appendConflict(result, local, server);
+                }
+            }
+
+            basePos = groupEnd;
+            localIndex = localEnd;
+            serverIndex = serverEnd;
+        }
+        base.appendTo(result, basePos, base.size());
+        return result.toString();
+    }
+
+    /**
+     * Merges the versions read from {@code base}, {@code current} and {@code modified}, writing the
+     * result to {@code out} as it goes. Every line written ends with a newline.
+     *
+     * <p>Lines that all three versions share are written straight through. After the versions
+     * diverge, up to {@code maxWindowLines} lines of each version are read into a window. If that
+     * reaches the end of all three versions, the windows are merged exactly as {@link
+     * #merge(String, String, String)} merges the whole contents. Otherwise the windows are merged
+     * up to the last line which occurs exactly once in each of them, that line is taken to be
+     * unchanged, and the lines after it are read again. If the windows share no such line they are
+     * merged whole, which may split one change into several.</p>
+     *
+     * <p>Memory use is bounded by the window size rather than by the size of the contents. In
+     * exchange, where the versions differ over more than a window, changes may be grouped into
+     * different hunks, and so into different conflicts, than the in-memory merge would produce.</p>
+     */
+    static void merge(BufferedReader base, BufferedReader current, BufferedReader modified,
+            Writer out, int maxWindowLines) throws IOException {
+        Window baseWindow = new Window(base);
+        Window currentWindow = new Window(current);
+        Window modifiedWindow = new Window(modified);
+
+        // Each pass starts with all three windows empty.
+        while (true) {
+            String baseLine = baseWindow.readLine();
+            String currentLine = currentWindow.readLine();
+            String modifiedLine = modifiedWindow.readLine();
+            if (baseLine == null && currentLine == null && modifiedLine == null) {
+                return;
+            }
+            if (baseLine != null && baseLine.equals(currentLine)
+                    && baseLine.equals(modifiedLine)) {
+                // The versions agree, which is the common case.
+                out.write(baseLine);
+                continue;
+            }
+            baseWindow.add(baseLine);
+            currentWindow.add(currentLine);
+            modifiedWindow.add(modifiedLine);
+            baseWindow.fill(maxWindowLines);
+            currentWindow.fill(maxWindowLines);
+            modifiedWindow.fill(maxWindowLines);
+            if (baseWindow.isFinished() && currentWindow.isFinished()
+                    && modifiedWindow.isFinished()) {
+                // The rest of the contents fits in the windows.
+                flush(baseWindow, currentWindow, modifiedWindow, out);
+                return;
+            }
+
+            String anchor = null;
+            for (int i = baseWindow.size() - 1; i >= 0 && anchor == null; i--) {
+                String line = baseWindow.get(i);
+                if (baseWindow.isUnique(line) && currentWindow.isUnique(line)
+                        && modifiedWindow.isUnique(line)) {
+                    anchor = line;
+                }
+            }
+            if (anchor == null) {
+                flush(baseWindow, currentWindow, modifiedWindow, out);
+                continue;
+            }
+            int baseIndex = baseWindow.indexOf(anchor);
+            int currentIndex = currentWindow.indexOf(anchor);
+            int modifiedIndex = modifiedWindow.indexOf(anchor);
+            out.write(merge(baseWindow.join(baseIndex), currentWindow.join(currentIndex),
+                    modifiedWindow.join(modifiedIndex)));
+            out.write(anchor);
+            // Lines after the anchor are read again, as they may start another run of shared
+            // lines.
+            baseWindow.unread(baseIndex + 1);
+            currentWindow.unread(currentIndex + 1);
+            modifiedWindow.unread(modifiedIndex + 1);
+        }
+    }
+
+    private static void flush(Window base, Window current, Window modified, Writer out)
+            throws IOException {
+        if (!base.isEmpty() || !current.isEmpty() || !modified.isEmpty()) {
+            out.write(merge(base.join(base.size()), current.join(current.size()),
+                    modified.join(modified.size())));
+            base.unread(base.size());
+            current.unread(current.size());
+            modified.unread(modified.size());
+        }
+    }
+
+    /**
+     * The lines of one version read since the versions last agreed.
+     */
+    private static class Window {
+        private final BufferedReader mReader;
+        private final List<String> mLines = new ArrayList<>();
+        // The first index of each line in mLines.
+        private final Map<String, Integer> mIndex = new HashMap<>();
+        // Lines which occur more than once in mLines.
+        private final Set<String> mRepeated = new HashSet<>();
+        // Lines to be read again before reading from mReader.
+        private final Deque<String> mUnread = new ArrayDeque<>();
+        private boolean mEndOfInput;
+
+        Window(BufferedReader reader) {
+            mReader = reader;
+        }
+
+        /**
+         * Returns the next line, including a trailing newline, or {@code null} at the end of
+         * the input.
+         */
+        String readLine() throws IOException {
+            if (!mUnread.isEmpty()) {
+                return mUnread.removeFirst();
+            }
+            String line = mEndOfInput ? null : mReader.readLine();
+            if (line == null) {
+                mEndOfInput = true;
+                return null;
+            }
+            return line + "\n";
+        }
+
+        boolean isFinished() {
+            return mEndOfInput && mUnread.isEmpty();
+        }
+
+        void add(String line) {
+            if (line != null) {
+                if (mIndex.containsKey(line)) {
+                    mRepeated.add(line);
+                } else {
+                    mIndex.put(line, mLines.size());
+                }
+                mLines.add(line);
+            }
+        }
+
+        /**
+         * Reads lines into the window until it holds {@code maxLines} lines or the input ends.
+         */
+        void fill(int maxLines) throws IOException {
+            while (mLines.size() < maxLines) {
+                String line = readLine();
+                if (line == null) {
+                    return;
+                }
+                add(line);
+            }
+        }
+
+        String get(int index) {
+            return mLines.get(index);
+        }
+
+        /**
+         * Returns whether {@code line} occurs exactly once in the window.
+         */
+        boolean isUnique(String line) {
+            return mIndex.containsKey(line) && !mRepeated.contains(line);
+        }
+
+        int indexOf(String line) {
+            return mIndex.get(line);
+        }
+
+        int size() {
+            return mLines.size();
+        }
+
+        boolean isEmpty() {
+            return mLines.isEmpty();
+        }
+
+        /**
+         * Returns the first {@code count} lines as one String.
+         */
+        String join(int count) {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                builder.append(mLines.get(i));
+            }
+            return builder.toString();
+        }
+
+        /**
+         * Empties the window, keeping the lines from index {@code from} on to be read again.
+         */
+        void unread(int from) {
+            for (int i = mLines.size() - 1; i >= from; i--) {
+                mUnread.addFirst(mLines.get(i));
+            }
+            mLines.clear();
+            mIndex.clear();
+            mRepeated.clear();
+        }
+    }
+
+    /**
+     * Appends one side's version of base lines {@code [start, end)}, given that side's hunks
+     * within that range.
+     */
+    private static void appendVersion(StringBuilder out, Lines base, Lines side,
+            List<LineDiff.Hunk> hunks, int start, int end) {
+        int basePos = start;
+        for (LineDiff.Hunk hunk : hunks) {
+            base.appendTo(out, basePos, hunk.baseStart);
+            side.appendTo(out, hunk.newStart, hunk.newEnd);
+            basePos = hunk.baseEnd;
+        }
+        base.appendTo(out, basePos, end);
+    }
+
+    private static void appendConflict(StringBuilder out, CharSequence local,
+            CharSequence server) {
+        ensureNewline(out);
+        out.append(MARKER_LOCAL).append(local);
+        ensureNewline(out);
+        out.append(MARKER_SEPARATOR).append(server);
+        ensureNewline(out);
+        out.append(MARKER_SERVER);
+    }
+
+    private static void ensureNewline(StringBuilder out) {
+        if (out.length() > 0 && out.charAt(out.length() - 1) != '\n') {
+            out.append('\n');
+        }
+    }
+
+    /**
+     * The lines of a text, each including its terminating newline, stored as offsets into the
+     * text rather than as separate strings.
+     */
+    static class Lines {
+        final String text;
+        // Line i spans text[starts[i], starts[i + 1]).
+        private int[] mStarts;
+        private int mSize;
+
+        Lines(String text) {
+            this.text = text;
+            mStarts = new int[16];
+            int start = 0;
+            while (start < text.length()) {
+                int newline = text.indexOf('\n', start);
+                int end = newline == -1 ? text.length() : newline + 1;
+                add(start);
+                start = end;
+            }
+            add(text.length());
+            mSize--;
+        }
+
+        private void add(int start) {
+            if (mSize == mStarts.length) {
+                mStarts = Arrays.copyOf(mStarts, mSize * 2);
+            }
+            mStarts[mSize++] = start;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        int start(int line) {
+            return mStarts[line];
+        }
+
+        int end(int line) {
+            return mStarts[line + 1];
+        }
+
+        /**
+         * Appends lines {@code [from, to)} to {@code out}.
+         */
+        void appendTo(StringBuilder out, int from, int to) {
+            if (from < to) {
+                out.append(text, mStarts[from], mStarts[to]);
+            }
+        }
+    }
+
+    /**
+     * Assigns the same ID to equal lines across several texts, using an open-addressing hash
+     * table of line ranges so that no per-line strings are allocated.
+     */
+    private static class LineInterner {
+        private final int[] mTable;
+        private final int mMask;
+        // Representative line of each ID.
+        private final List<Lines> mIdLines = new ArrayList<>();
+        private int[] mIdLine = new int[16];
+
+        LineInterner(int expectedLines) {
+            int capacity = Integer.highestOneBit(Math.max(expectedLines, 8) * 2 - 1) << 1;
+            mTable = new int[capacity];
+            mMask = capacity - 1;
+        }
+
+        int[] intern(Lines lines) {
+            int[] ids = new int[lines.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = intern(lines, i);
+            }
+            return ids;
+        }
+
+        private int intern(Lines lines, int line) {
+            int start = lines.start(line);
+            int length = lines.end(line) - start;
+            int hash = 0;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + lines.text.charAt(start + i);
+            }
+
+            int slot = (hash ^ (hash >>> 16)) & mMask;
+            while (mTable[slot] != 0) {
+                int id = mTable[slot] - 1;
+                Lines idLines = mIdLines.get(id);
+                int idStart = idLines.start(mIdLine[id]);
+                if (idLines.end(mIdLine[id]) - idStart == length
+                        && lines.text.regionMatches(start, idLines.text, idStart, length)) {
+                    return id;
+                }
+                slot = (slot + 1) & mMask;
+            }
+
+            int id = mIdLines.size();
+            mIdLines.add(lines);
+            if (id == mIdLine.length) {
+                mIdLine = Arrays.copyOf(mIdLine, id * 2);
+            }
+            mIdLine[id] = line;
+            mTable[slot] = id + 1;
+            return id;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.conflict;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes the differences between two sequences of lines using Myers' O(ND) algorithm in its
+ * linear-space, divide-and-conquer form.
+ *
+ * <p>Lines are compared as integer IDs, so callers intern equal lines to equal IDs first.</p>
+ *
+ * <p>The search for a shortest edit script costs O(ND) for N lines and D edits, which is
+ * quadratic when the sequences barely match. Once the search through a region passes {@link
+ * #MAX_COST} edits, the region is instead split at the point furthest along any diagonal reached
+ * so far, as GNU diff does, and both halves are diffed in turn. The result may then not be the
+ * shortest, but unrelated edits still land in separate hunks. {@link #diffExact} never gives up
+ * on the shortest edit script.</p>
+ */
+class LineDiff {
+    /**
+     * The most edits searched for in one region before it is split heuristically.
+     */
+    static final int MAX_COST = 1024;
+
+    /**
+     * A region where lines {@code [baseStart, baseEnd)} of the old sequence were replaced by lines
+     * {@code [newStart, newEnd)} of the new sequence. Either range may be empty.
+     */
+    static class Hunk {
+        final int baseStart;
+        final int baseEnd;
+        final int newStart;
+        final int newEnd;
+
+        Hunk(int baseStart, int baseEnd, int newStart, int newEnd) {
+            this.baseStart = baseStart;
+            this.baseEnd = baseEnd;
+            this.newStart = newStart;
+            this.newEnd = newEnd;
+        }
+    }
+
+    private final int[] mA;
+    private final int[] mB;
+    private final int mMaxCost;
+    private final boolean[] mChangedA;
+    private final boolean[] mChangedB;
+
+    // Furthest reaching x on each diagonal k = x - y, offset so that k = -mB.length is index 1.
+    private final int[] mForward;
+    private final int[] mBackward;
+    private final int mOffset;
+
+    private int mSplitX;
+    private int mSplitY;
+
+    private LineDiff(int[] a, int[] b, int maxCost) {
+        mA = a;
+        mB = b;
+        mMaxCost = maxCost;
+        mChangedA = new boolean[a.length];
+        mChangedB = new boolean[b.length];
+        mForward = new int[a.length + b.length + 3];
+        mBackward = new int[a.length + b.length + 3];
+        mOffset = b.length + 1;
+    }
+
+    /**
+     * Returns the hunks which turn {@code a} into {@code b}, in order.
+     */
+    static List<Hunk> diff(int[] a, int[] b) {
+        return diff(a, b, MAX_COST);
+    }
+
+    /**
+     * Returns the hunks of a shortest edit script turning {@code a} into {@code b}, in order, so
+     * that no line common to both is ever reported as replaced. This costs O(ND) however many
+     * edits D there are.
+     */
+    static List<Hunk> diffExact(int[] a, int[] b) {
+        return diff(a, b, Integer.MAX_VALUE);
+    }
+
+    private static List<Hunk> diff(int[] a, int[] b, int maxCost) {
+        LineDiff lineDiff = new LineDiff(a, b, maxCost);
+        lineDiff.compare(0, a.length, 0, b.length);
+        return lineDiff.toHunks();
+    }
+
+    /**
+     * Marks the lines of {@code a[xOff, xLim)} and {@code b[yOff, yLim)} which are not part of a
+     * longest common subsequence, or of a long common subsequence where that is too costly.
+     */
+    private void compare(int xOff, int xLim, int yOff, int yLim) {
+        // Lines shared at either end are never part of the difference.
+        while (xOff < xLim && yOff < yLim && mA[xOff] == mB[yOff]) {
+            xOff++;
+            yOff++;
+        }
+        while (xOff < xLim && yOff < yLim && mA[xLim - 1] == mB[yLim - 1]) {
+            xLim--;
+            yLim--;
+        }
+
+        if (xOff == xLim) {
+            for (int y = yOff; y < yLim; y++) {
+                mChangedB[y] = true;
+            }
+        } else if (yOff == yLim) {
+            for (int x = xOff; x < xLim; x++) {
+                mChangedA[x] = true;
+            }
+        } else {
+            findMiddleSnake(xOff, xLim, yOff, yLim);
+            int splitX = mSplitX;
+            int splitY = mSplitY;
+            compare(xOff, splitX, yOff, splitY);
+            compare(splitX, xLim, splitY, yLim);
+        }
+    }
+
+    /**
+     * Finds a point on an optimal edit path through {@code a[xOff, xLim)} and {@code b[yOff,
+     * yLim)} by searching forward from the start and backward from the end until the searches
+     * meet. The point is stored in {@link #mSplitX} and {@link #mSplitY}.
+     *
+     * <p>If the searches have not met after {@link #mMaxCost} edits, the point reached furthest
+     * by either search is used instead. Both searches advance by at least one line per edit, so
+     * this point always lies strictly inside the region.</p>
+     */
+    private void findMiddleSnake(int xOff, int xLim, int yOff, int yLim) {
+        int dMin = xOff - yLim;
+        int dMax = xLim - yOff;
+        int fMid = xOff - yOff;
+        int bMid = xLim - yLim;
+        boolean odd = ((fMid - bMid) & 1) != 0;
+
+        int fMin = fMid;
+        int fMax = fMid;
+        int bMin = bMid;
+        int bMax = bMid;
+        mForward[mOffset + fMid] = xOff;
+        mBackward[mOffset + bMid] = xLim;
+
+        // Each pass extends both searches by one edit, so together they cover two edits.
+        for (int cost = 0; ; cost += 2) {
+            // Extend the forward search by one edit.
+            if (fMin > dMin) {
+                mForward[mOffset + --fMin - 1] = -1;
+            } else {
+                fMin++;
+            }
+            if (fMax < dMax) {
+                mForward[mOffset + ++fMax + 1] = -1;
+            } else {
+                fMax--;
+            }
+            for (int d = fMax; d >= fMin; d -= 2) {
+                int tLo = mForward[mOffset + d - 1];
+                int tHi = mForward[mOffset + d + 1];
+                int x = tLo >= tHi ? tLo + 1 : tHi;
+                int y = x - d;
+                while (x < xLim && y < yLim && mA[x] == mB[y]) {
+                    x++;
+                    y++;
+                }
+                mForward[mOffset + d] = x;
+                if (odd && bMin <= d && d <= bMax && mBackward[mOffset + d] <= x) {
+                    mSplitX = x;
+                    mSplitY = y;
+                    return;
+                }
+            }
+
+            // Extend the backward search by one edit.
+            if (bMin > dMin) {
+                mBackward[mOffset + --bMin - 1] = Integer.MAX_VALUE;
+            } else {
+                bMin++;
+            }
+            if (bMax < dMax) {
+                mBackward[mOffset + ++bMax + 1] = Integer.MAX_VALUE;
+            } else {
+                bMax--;
+            }
+            for (int d = bMax; d >= bMin; d -= 2) {
+                int tLo = mBackward[mOffset + d - 1];
+                int tHi = mBackward[mOffset + d + 1];
+                int x = tLo < tHi ? tLo : tHi - 1;
+                int y = x - d;
+                while (x > xOff && y > yOff && mA[x - 1] == mB[y - 1]) {
+                    x--;
+                    y--;
+                }
+                mBackward[mOffset + d] = x;
+                if (!odd && fMin <= d && d <= fMax && x <= mForward[mOffset + d]) {
+                    mSplitX = x;
+                    mSplitY = y;
+                    return;
+                }
+            }
+
+            if (cost + 2 >= mMaxCost) {
+                splitHeuristically(xOff, xLim, yOff, yLim, fMin, fMax, bMin, bMax);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stores in {@link #mSplitX} and {@link #mSplitY} whichever of the forward search's furthest
+     * point from the start and the backward search's furthest point from the end has made the
+     * most progress. Points past the edges of the region are clipped back onto it.
+     */
+    private void splitHeuristically(int xOff, int xLim, int yOff, int yLim,
+            int fMin, int fMax, int bMin, int bMax) {
+        int fBestX = xOff;
+        int fBestXY = xOff + yOff;
+        for (int d = fMax; d >= fMin; d -= 2) {
+            int x = Math.min(mForward[mOffset + d], xLim);
+            int y = x - d;
+            if (y > yLim) {
+                x = yLim + d;
+                y = yLim;
+            }
+            if (x + y > fBestXY) {
+                fBestXY = x + y;
+                fBestX = x;
+            }
+        }
+
+        int bBestX = xLim;
+        int bBestXY = xLim + yLim;
+        for (int d = bMax; d >= bMin; d -= 2) {
+            int x = Math.max(mBackward[mOffset + d], xOff);
+            int y = x - d;
+            if (y < yOff) {
+                x = yOff + d;
+                y = yOff;
+            }
+            if (x + y < bBestXY) {
+                bBestXY = x + y;
+                bBestX = x;
+            }
+        }
+
+        if (fBestXY - (xOff + yOff) >= (xLim + yLim) - bBestXY) {
+            mSplitX = fBestX;
+            mSplitY = fBestXY - fBestX;
+        } else {
+            mSplitX = bBestX;
+            mSplitY = bBestXY - bBestX;
+        }
+    }
+
+    /**
+     * Groups consecutive changed lines into hunks.
+     */
+    private List<Hunk> toHunks() {
+        List<Hunk> hunks = new ArrayList<>();
+        int x = 0;
+        int y = 0;
+        while (x < mA.length || y < mB.length) {
+            if ((x < mA.length && mChangedA[x]) || (y < mB.length && mChangedB[y])) {
+                int x0 = x;
+                int y0 = y;
+                while (x < mA.length && mChangedA[x]) {
+                    x++;
+                }
+                while (y < mB.length && mChangedB[y]) {
+                    y++;
+                }
+                hunks.add(new Hunk(x0, x, y0, y));
+            } else {
+                x++;
+                y++;
+            }
+        }
+        return hunks;
+    }
+}
@@ -0,0 +1,507 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.conflict;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of items which can be edited on several devices and merged without a common base
+ * version, implemented as a Replicated Growable Array (RGA).
+ *
+ * <p>Every item ever inserted keeps a unique ID, made of a Lamport counter and the ID of the
+ * replica that inserted it, and the ID of the item it was inserted after. Removed items are kept
+ * as tombstones so that later insertions can still be placed relative to them. Merging two lists
+ * takes the union of their items and orders them so that an item follows the item it was inserted
+ * after, and items inserted after the same item are ordered newest first. Merges are therefore
+ * commutative and idempotent, keep concurrent insertions, duplicate items and reorderings, and
+ * never need the base version.</p>
+ *
+ * <p>Lists are stored in a compact binary form; see {@link #encode(OutputStream)}. Contents which
+ * are not in that form are read as a plain text list, one item per line. The items read from a
+ * text are attributed to a replica ID derived from the text itself, so replicas which read the
+ * same text agree on the items' IDs, while lists read from different texts never share IDs and
+ * merge as two separate sets of insertions.</p>
+ */
+class ListCrdt {
+    private static final byte[] MAGIC = {'R', 'G', 'A', 1};
+
+    private static final int FLAG_DELETED = 1;
+    private static final int FLAG_ORIGIN_PREVIOUS = 2;
+    private static final int FLAG_ORIGIN_HEAD = 4;
+
+    // The replica ID of lists which can be merged but not edited.
+    private static final long MERGE_ONLY_REPLICA_ID = 0;
+
+    /**
+     * Identifies an item by the Lamport counter and replica at which it was inserted.
+     */
+    private static final class Id implements Comparable<Id> {
+        // The ID of the virtual item at the head of the list.
+        static final Id HEAD = new Id(0, 0);
+
+        final long counter;
+        final long replica;
+
+        Id(long counter, long replica) {
+            this.counter = counter;
+            this.replica = replica;
+        }
+
+        @Override
+        public int compareTo(Id other) {
+            if (counter != other.counter) {
+                return counter < other.counter ? -1 : 1;
+            }
+            return replica == other.replica ? 0 : (replica < other.replica ? -1 : 1);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Id)) {
+                return false;
+            }
+            Id other = (Id) o;
+            return counter == other.counter && replica == other.replica;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (counter ^ (counter >>> 32) ^ (replica * 31) ^ (replica >>> 32));
+        }
+    }
+
+    private static final class Item {
+        final Id id;
+        final Id origin;
+        // null once the item has been removed.
+        String value;
+
+        Item(Id id, Id origin, String value) {
+            this.id = id;
+            this.origin = origin;
+            this.value = value;
+        }
+
+        boolean isDeleted() {
+            return value == null;
+        }
+    }
+
+    private final long mReplicaId;
+    // Every item, including tombstones, in list order.
+    private List<Item> mItems = new ArrayList<>();
+    private final Map<Id, Item> mItemsById = new HashMap<>();
+    private long mMaxCounter;
+
+    /**
+     * Creates an empty list whose local edits are attributed to {@code replicaId}, which must be
+     * unique to this device. A list created with replica ID 0 can be merged but not edited.
+     */
+    ListCrdt(long replicaId) {
+        mReplicaId = replicaId;
+    }
+
+    /**
+     * Returns whether {@code content} starts like an encoded list.
+     */
+    static boolean isEncoded(byte[] content) {
+        if (content.length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (content[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a list from {@code in} which can be merged but not edited.
+     */
+    static ListCrdt decode(InputStream in) throws IOException {
+        return decode(in, MERGE_ONLY_REPLICA_ID);
+    }
+
+    /**
+     * Reads a list written by {@link #encode(OutputStream)}, or a plain text list, from {@code
+     * in}. Local edits are attributed to {@code replicaId}.
+     */
+    static ListCrdt decode(InputStream in, long replicaId) throws IOException {
+        ListCrdt list = new ListCrdt(replicaId);
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        data.mark(MAGIC.length);
+        byte[] magic = new byte[MAGIC.length];
+        int count = 0;
+        int read;
+        while (count < magic.length
+                && (read = data.read(magic, count, magic.length - count)) > 0) {
+            count += read;
+        }
+        if (count == MAGIC.length && isEncoded(magic)) {
+            list.readItems(data);
+        } else {
+            data.reset();
+            list.readText(data);
+        }
+        return list;
+    }
+
+    /**
+     * Returns the items of the list, in order.
+     */
+    List<String> getItems() {
+        List<String> values = new ArrayList<>();
+        for (Item item : mItems) {
+            if (!item.isDeleted()) {
+                values.add(item.value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Edits the list so that its items are {@code values}, as a minimal series of insertions and
+     * removals found with {@link LineDiff#diffExact}.
+     *
+     * <p>The diff is exact however large the edit, since an item reported as replaced would lose
+     * its ID, and with it any concurrent remote removal of that item.</p>
+     */
+    void setItems(List<String> values) {
+        if (mReplicaId == MERGE_ONLY_REPLICA_ID) {
+            throw new IllegalStateException("This list cannot be edited.");
+        }
+        List<Item> visible = new ArrayList<>();
+        for (Item item : mItems) {
+            if (!item.isDeleted()) {
+                visible.add(item);
+            }
+        }
+
+        // Compare the values as interned IDs.
+        Map<String, Integer> valueIds = new HashMap<>();
+        int[] oldIds = new int[visible.size()];
+        for (int i = 0; i < oldIds.length; i++) {
+            oldIds[i] = internValue(valueIds, visible.get(i).value);
+        }
+        int[] newIds = new int[values.size()];
+        for (int i = 0; i < newIds.length; i++) {
+            newIds[i] = internValue(valueIds, values.get(i));
+        }
+        List<LineDiff.Hunk> hunks = LineDiff.diffExact(oldIds, newIds);
+        if (hunks.isEmpty()) {
+            return;
+        }
+
+        // New items go right after the visible item before them, or at the head, and each
+        // following new item right after the one before it. Being the newest children of their
+        // origins, that is where the merge order would place them too.
+        LineDiff.Hunk headInsertion = null;
+        LineDiff.Hunk[] insertionsAfter = new LineDiff.Hunk[visible.size()];
+        for (LineDiff.Hunk hunk : hunks) {
+            if (hunk.newStart < hunk.newEnd) {
+                if (hunk.baseStart == 0) {
+                    headInsertion = hunk;
+                } else {
+                    insertionsAfter[hunk.baseStart - 1] = hunk;
+                }
+            }
+        }
+
+        List<Item> items = new ArrayList<>(mItems.size() + values.size());
+        if (headInsertion != null) {
+            insertAll(items, Id.HEAD, values, headInsertion);
+        }
+        int visibleIndex = 0;
+        for (Item item : mItems) {
+            items.add(item);
+            if (!item.isDeleted()) {
+                if (insertionsAfter[visibleIndex] != null) {
+                    insertAll(items, item.id, values, insertionsAfter[visibleIndex]);
+                }
+                visibleIndex++;
+            }
+        }
+        mItems = items;
+
+        for (LineDiff.Hunk hunk : hunks) {
+            for (int i = hunk.baseStart; i < hunk.baseEnd; i++) {
+                visible.get(i).value = null;
+            }
+        }
+    }
+
+    /**
+     * Merges the items of {@code other} into this list.
+     */
+    void merge(ListCrdt other) {
+        boolean changed = false;
+        for (Item otherItem : other.mItems) {
+            Item item = mItemsById.get(otherItem.id);
+            if (item == null) {
+                item = new Item(otherItem.id, otherItem.origin, otherItem.value);
+                mItemsById.put(item.id, item);
+                mMaxCounter = Math.max(mMaxCounter, item.id.counter);
+                changed = true;
+            } else if (otherItem.isDeleted() && !item.isDeleted()) {
+                item.value = null;
+            }
+        }
+        if (changed) {
+            reorder();
+        }
+    }
+
+    /**
+     * Writes the list in its binary form.
+     *
+     * <p>The form starts with a magic number and a table of the replica IDs used. Items follow in
+     * list order, each as a flags byte, its counter as a variable length delta from the previous
+     * item's, the index of its replica, the ID of the item it was inserted after unless that is
+     * the previous item or the head, and the UTF-8 bytes of its value unless it was removed.</p>
+     */
+    void encode(OutputStream out) throws IOException {
+        Map<Long, Integer> replicaIndexes = new HashMap<>();
+        List<Long> replicas = new ArrayList<>();
+        for (Item item : mItems) {
+            if (!replicaIndexes.containsKey(item.id.replica)) {
+                replicaIndexes.put(item.id.replica, replicas.size());
+                replicas.add(item.id.replica);
+            }
+        }
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.write(MAGIC);
+        writeVarint(data, replicas.size());
+        for (long replica : replicas) {
+            data.writeLong(replica);
+        }
+        writeVarint(data, mItems.size());
+        Id previous = Id.HEAD;
+        for (Item item : mItems) {
+            int flags = 0;
+            if (item.isDeleted()) {
+                flags |= FLAG_DELETED;
+            }
+            if (item.origin.equals(previous)) {
+                flags |= FLAG_ORIGIN_PREVIOUS;
+            } else if (item.origin.equals(Id.HEAD)) {
+                flags |= FLAG_ORIGIN_HEAD;
+            }
+            data.writeByte(flags);
+            writeVarint(data, zigZag(item.id.counter - previous.counter));
+            writeVarint(data, replicaIndexes.get(item.id.replica));
+            if ((flags & (FLAG_ORIGIN_PREVIOUS | FLAG_ORIGIN_HEAD)) == 0) {
+                writeVarint(data, item.origin.counter);
+                writeVarint(data, replicaIndexes.get(item.origin.replica));
+            }
+            if (!item.isDeleted()) {
+                byte[] value = item.value.getBytes(StandardCharsets.UTF_8);
+                writeVarint(data, value.length);
+                data.write(value);
+            }
+            previous = item.id;
+        }
+        data.flush();
+    }
+
+    /**
+     * Returns the encoded form of the list.
+     */
+    byte[] toByteArray() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            encode(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private void insertAll(List<Item> items, Id origin, List<String> values, LineDiff.Hunk hunk) {
+        for (int i = hunk.newStart; i < hunk.newEnd; i++) {
+            Item item = new Item(new Id(++mMaxCounter, mReplicaId), origin, values.get(i));
+            mItemsById.put(item.id, item);
+            items.add(item);
+            origin = item.id;
+        }
+    }
+
+    /**
+     * Puts the items in list order: a depth-first walk of the tree in which each item is a child
+     * of its origin, visiting newer siblings first.
+     */
+    private void reorder() {
+        Map<Id, List<Item>> children = new HashMap<>();
+        for (Item item : mItemsById.values()) {
+            List<Item> siblings = children.get(item.origin);
+            if (siblings == null) {
+                siblings = new ArrayList<>(1);
+                children.put(item.origin, siblings);
+            }
+            siblings.add(item);
+        }
+        for (List<Item> siblings : children.values()) {
+            if (siblings.size() > 1) {
+                Collections.sort(siblings, (a, b) -> b.id.compareTo(a.id));
+            }
+        }
+
+        List<Item> items = new ArrayList<>(mItemsById.size());
+        Deque<Item> stack = new ArrayDeque<>();
+        pushChildren(stack, children.get(Id.HEAD));
+        while (!stack.isEmpty()) {
+            Item item = stack.pop();
+            items.add(item);
+            pushChildren(stack, children.get(item.id));
+        }
+        mItems = items;
+    }
+
+    private static void pushChildren(Deque<Item> stack, List<Item> siblings) {
+        if (siblings != null) {
+            for (int i = siblings.size() - 1; i >= 0; i--) {
+                stack.push(siblings.get(i));
+            }
+        }
+    }
+
+    private void readItems(DataInputStream data) throws IOException {
+        int replicaCount = readVarint(data);
+        long[] replicas = new long[replicaCount];
+        for (int i = 0; i < replicaCount; i++) {
+            replicas[i] = data.readLong();
+        }
+        int itemCount = readVarint(data);
+        List<Item> items = new ArrayList<>(itemCount);
+        Id previous = Id.HEAD;
+        for (int i = 0; i < itemCount; i++) {
+            int flags = data.readUnsignedByte();
+            long counter = previous.counter + unZigZag(readVarLong(data));
+            Id id = new Id(counter, replicas[readVarint(data)]);
+            Id origin;
+            if ((flags & FLAG_ORIGIN_PREVIOUS) != 0) {
+                origin = previous;
+            } else if ((flags & FLAG_ORIGIN_HEAD) != 0) {
+                origin = Id.HEAD;
+            } else {
+                long originCounter = readVarLong(data);
+                origin = new Id(originCounter, replicas[readVarint(data)]);
+            }
+            String value = null;
+            if ((flags & FLAG_DELETED) == 0) {
+                byte[] bytes = new byte[readVarint(data)];
+                data.readFully(bytes);
+                value = new String(bytes, StandardCharsets.UTF_8);
+            }
+            Item item = new Item(id, origin, value);
+            items.add(item);
+            mItemsById.put(id, item);
+            mMaxCounter = Math.max(mMaxCounter, counter);
+            previous = id;
+        }
+        mItems = items;
+    }
+
+    private void readText(InputStream in) throws IOException {
+        List<String> values = new ArrayList<>();
+        for (String value : ConflictUtil.getStringFromInputStream(in).split("\n")) {
+            if (!value.isEmpty()) {
+                values.add(value);
+            }
+        }
+        long textReplicaId = textReplicaIdOf(values);
+        Id origin = Id.HEAD;
+        for (int i = 0; i < values.size(); i++) {
+            Item item = new Item(new Id(i + 1, textReplicaId), origin, values.get(i));
+            mItems.add(item);
+            mItemsById.put(item.id, item);
+            origin = item.id;
+        }
+        mMaxCounter = values.size();
+    }
+
+    /**
+     * Returns the replica ID to attribute the items of a plain text list to: the first 64 bits of
+     * a digest of the items, which is never 0.
+     */
+    private static long textReplicaIdOf(List<String> values) {
+        MessageDigest digest = MergeCache.newDigest();
+        for (String value : values) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        long replicaId = ByteBuffer.wrap(digest.digest()).getLong();
+        return replicaId != MERGE_ONLY_REPLICA_ID ? replicaId : 1;
+    }
+
+    private static int internValue(Map<String, Integer> valueIds, String value) {
+        Integer id = valueIds.get(value);
+        if (id == null) {
+            id = valueIds.size();
+            valueIds.put(value, id);
+        }
+        return id;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new EOFException("Malformed variable length integer.");
+    }
+}
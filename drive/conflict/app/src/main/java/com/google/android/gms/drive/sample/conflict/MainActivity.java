@@ -17,9 +17,15 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.content.LocalBroadcastManager;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.widget.Button;
 import android.widget.EditText;
 
@@ -38,14 +44,21 @@ import com.google.android.gms.tasks.Tasks;
 
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Main Activity of the application where "Grocery List" is displayed, edited and saved.
  */
 public class MainActivity extends BaseDemoActivity {
     private static final String TAG = "MainActivity";
+    // How long editing must pause before the list is saved automatically.
+    private static final long AUTOSAVE_DELAY_MILLIS = 3000;
+    private static final String KEY_REPLICA_ID = "replica_id";
+    // How conflicts are merged in a newly created list, until the user chooses otherwise.
+    private static final MergeStrategy NEW_LIST_MERGE_STRATEGY = MergeStrategy.DIFF3;
 
     private EditText mEditText;
     private Button mUpdateGroceryListButton;
@@ -54,6 +67,18 @@ public class MainActivity extends BaseDemoActivity {
     private DriveContents mDriveContents;
     // Receiver used to update the EditText once conflicts have been resolved.
     private BroadcastReceiver mBroadcastReceiver;
+    // Hash of the list as last read from or written to Drive, used to skip unchanged saves.
+    private byte[] mSavedContentHash;
+    // How conflicts in the list are merged, and the list itself if it is kept as a CRDT.
+    private MergeStrategy mMergeStrategy = MergeStrategy.SET;
+    private ListCrdt mList;
+    private final Handler mHandler = new Handler();
+    private final Runnable mAutosave = this::autosave;
+    private boolean mSaveInProgress;
+    private boolean mSaveRequested;
+    private int mSaveCount;
+    private int mSkippedSaveCount;
+    private long mBytesWritten;
 
     @Override
     protected void onCreate(Bundle b) {
@@ -78,6 +103,21 @@ public class MainActivity extends BaseDemoActivity {
             }
         });
 
+        // Save automatically once the user pauses typing.
+        mEditText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mHandler.removeCallbacks(mAutosave);
+                mHandler.postDelayed(mAutosave, AUTOSAVE_DELAY_MILLIS);
+            }
+        });
+
         // When conflicts are resolved, update the EditText with the resolved list
         // then open the contents so it contains the resolved list.
         mBroadcastReceiver = new BroadcastReceiver() {
@@ -105,9 +145,54 @@ public class MainActivity extends BaseDemoActivity {
     @Override
     protected void onStop() {
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
+        // Save any edits still waiting for the autosave delay.
+        mHandler.removeCallbacks(mAutosave);
+        autosave();
         super.onStop();
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.merge_strategy, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        boolean loaded = mGroceryListFile != null && mDriveContents != null && !mSaveInProgress;
+        menu.findItem(R.id.mergeAsSetAction)
+                .setEnabled(loaded)
+                .setChecked(mMergeStrategy == MergeStrategy.SET);
+        menu.findItem(R.id.mergeLineByLineAction)
+                .setEnabled(loaded)
+                .setChecked(mMergeStrategy == MergeStrategy.DIFF3);
+        menu.findItem(R.id.mergeAsListAction)
+                .setEnabled(loaded)
+                .setChecked(mMergeStrategy == MergeStrategy.CRDT);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        MergeStrategy strategy;
+        if (item.getItemId() == R.id.mergeAsSetAction) {
+            strategy = MergeStrategy.SET;
+        } else if (item.getItemId() == R.id.mergeLineByLineAction) {
+            strategy = MergeStrategy.DIFF3;
+        } else if (item.getItemId() == R.id.mergeAsListAction) {
+            strategy = MergeStrategy.CRDT;
+        } else {
+            return super.onOptionsItemSelected(item);
+        }
+        setMergeStrategy(strategy).addOnFailureListener(e -> {
+            Log.e(TAG, "Unable to change merge strategy", e);
+            showMessage(getString(R.string.unexpected_error));
+            // Read the strategy and contents in Drive again.
+            loadContents(mGroceryListFile);
+        });
+        return true;
+    }
+
     @Override
     protected void onDriveClientReady() {
         getDriveClient()
@@ -151,14 +236,31 @@ public class MainActivity extends BaseDemoActivity {
      */
     private Task<Void> loadContents(DriveFile file) {
         mGroceryListFile = file;
-        Task<DriveContents> loadTask =
-                getDriveResourceClient().openFile(file, DriveFile.MODE_READ_ONLY);
+        Task<DriveContents> loadTask = getDriveResourceClient()
+                .getMetadata(file)
+                .continueWithTask(task -> {
+                    mMergeStrategy = MergeStrategy.forFile(task.getResult());
+                    return getDriveResourceClient().openFile(file, DriveFile.MODE_READ_ONLY);
+                });
         return loadTask.continueWith(task -> {
             Log.d(TAG, "Reading file contents.");
             mDriveContents = task.getResult();
             InputStream inputStream = mDriveContents.getInputStream();
-            String groceryListStr = ConflictUtil.getStringFromInputStream(inputStream);
+            String groceryListStr;
+            if (mMergeStrategy == MergeStrategy.CRDT) {
+                // Lists saved as plain text are converted on the first save.
+                mList = ListCrdt.decode(inputStream, getReplicaId());
+                StringBuilder builder = new StringBuilder();
+                for (String item : mList.getItems()) {
+                    builder.append(item).append("\n");
+                }
+                groceryListStr = builder.toString();
+            } else {
+                mList = null;
+                groceryListStr = ConflictUtil.getStringFromInputStream(inputStream);
+            }
 
+            mSavedContentHash = MergeCache.newDigest().digest(groceryListStr.getBytes());
             mEditText.setText(groceryListStr);
             return null;
         });
@@ -173,14 +275,105 @@ public class MainActivity extends BaseDemoActivity {
                                                           .setTitle(getResources().getString(
                                                                   R.string.groceryListFileName))
                                                           .setMimeType("text/plain")
+                                                          .setCustomProperty(
+                                                                  MergeStrategy.PROPERTY_KEY,
+                                                                  NEW_LIST_MERGE_STRATEGY.name())
                                                           .build();
 
                     return getDriveResourceClient().createFile(folder, changeSet, null);
                 });
     }
 
+    /**
+     * Records in the list's metadata that conflicts in it are to be merged with {@code strategy},
+     * so that ConflictResolver uses it on every device.
+     *
+     * <p>The list is saved along with the metadata, since a CRDT list is stored in a different
+     * form than a plain text one. A list converted to a CRDT attributes its items to this
+     * device's replica ID.</p>
+     */
+    private Task<Void> setMergeStrategy(MergeStrategy strategy) {
+        if (strategy == mMergeStrategy) {
+            return Tasks.forResult(null);
+        }
+        MetadataChangeSet changeSet = new MetadataChangeSet.Builder()
+                .setCustomProperty(MergeStrategy.PROPERTY_KEY, strategy.name())
+                .build();
+        mMergeStrategy = strategy;
+        // saveFile() fills a new list with the items on screen.
+        mList = strategy == MergeStrategy.CRDT ? new ListCrdt(getReplicaId()) : null;
+        return saveFile(changeSet);
+    }
+
+    /**
+     * Returns the ID this installation attributes its edits of CRDT lists to, creating it the
+     * first time.
+     */
+    private long getReplicaId() {
+        SharedPreferences preferences = getPreferences(MODE_PRIVATE);
+        long replicaId = preferences.getLong(KEY_REPLICA_ID, 0);
+        if (replicaId == 0) {
+            SecureRandom random = new SecureRandom();
+            do {
+                replicaId = random.nextLong();
+            } while (replicaId == 0);
+            preferences.edit().putLong(KEY_REPLICA_ID, replicaId).apply();
+        }
+        return replicaId;
+    }
+
+    /**
+     * Saves the list if it has been loaded, logging any failure.
+     */
+    private void autosave() {
+        if (mGroceryListFile == null || mDriveContents == null) {
+            return;
+        }
+        saveFile().addOnFailureListener(e -> Log.e(TAG, "Unable to autosave", e));
+    }
+
+    /**
+     * Saves the list unless it is unchanged since it was last read or written. If a save is
+     * already running, another one is made once it finishes.
+     */
     private Task<Void> saveFile() {
+        return saveFile(null);
+    }
+
+    /**
+     * Saves the list, and applies {@code changeSet} to its metadata unless it is {@code null}.
+     * Without a change set, the list is only saved if it changed since it was last read or
+     * written.
+     */
+    private Task<Void> saveFile(MetadataChangeSet changeSet) {
+        if (mSaveInProgress) {
+            if (changeSet != null) {
+                return Tasks.forException(new IllegalStateException("A save is in progress."));
+            }
+            mSaveRequested = true;
+            return Tasks.forResult(null);
+        }
+        byte[] text = mEditText.getText().toString().getBytes();
+        byte[] contentHash = MergeCache.newDigest().digest(text);
+        if (changeSet == null && Arrays.equals(contentHash, mSavedContentHash)) {
+            mSkippedSaveCount++;
+            Log.d(TAG, "List unchanged, skipping save.");
+            return Tasks.forResult(null);
+        }
+        byte[] content = text;
+        if (mList != null) {
+            List<String> items = new ArrayList<>();
+            for (String item : mEditText.getText().toString().split("\n")) {
+                if (!item.isEmpty()) {
+                    items.add(item);
+                }
+            }
+            mList.setItems(items);
+            content = mList.toByteArray();
+        }
+
         Log.d(TAG, "Saving file.");
+        mSaveInProgress = true;
         // [START drive_android_reopen_for_write]
         Task<DriveContents> reopenTask =
                 getDriveResourceClient().reopenContentsForWrite(mDriveContents);
@@ -189,9 +382,8 @@ public class MainActivity extends BaseDemoActivity {
                 .continueWithTask(task -> {
                     // [START drive_android_write_conflict_strategy]
                     DriveContents driveContents = task.getResult();
-                    OutputStream outputStream = driveContents.getOutputStream();
-                    try (Writer writer = new OutputStreamWriter(outputStream)) {
-                        writer.write(mEditText.getText().toString());
+                    try (OutputStream outputStream = driveContents.getOutputStream()) {
+                        outputStream.write(content);
                     }
                     // ExecutionOptions define the conflict strategy to be used.
                     // [START drive_android_execution_options]
@@ -202,14 +394,34 @@ public class MainActivity extends BaseDemoActivity {
                                             ExecutionOptions.CONFLICT_STRATEGY_KEEP_REMOTE)
                                     .build();
                     return getDriveResourceClient().commitContents(
-                            driveContents, null, executionOptions);
+                            driveContents, changeSet, executionOptions);
                     // [END drive_android_execution_options]
                     // [END drive_android_write_conflict_strategy]
                 })
                 .continueWithTask(task -> {
+                    task.getResult();
+                    mSavedContentHash = contentHash;
+                    mSaveCount++;
+                    mBytesWritten += content.length;
+                    Log.d(TAG, "Saved " + mSaveCount + " times (" + mBytesWritten
+                            + " bytes), skipped " + mSkippedSaveCount + " unchanged saves.");
                     showMessage(getString(R.string.file_saved));
-                    Log.d(TAG, "Reopening file for read.");
-                    return loadContents(mGroceryListFile);
+                    // The list on screen is what was just written, so there is no need to read
+                    // it back. The file is only reopened so that the committed revision becomes
+                    // the base of the next save.
+                    return getDriveResourceClient().openFile(
+                            mGroceryListFile, DriveFile.MODE_READ_ONLY);
+                })
+                .continueWith(task -> {
+                    mDriveContents = task.getResult();
+                    return (Void) null;
+                })
+                .addOnCompleteListener(task -> {
+                    mSaveInProgress = false;
+                    if (mSaveRequested) {
+                        mSaveRequested = false;
+                        autosave();
+                    }
                 });
     }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.conflict;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded disk cache of merge results, keyed by a SHA-256 hash of the merge strategy and the
+ * merged versions.
+ *
+ * <p>The same conflict is often resolved more than once, for example when an event is delivered
+ * again after a snooze, so a merge whose inputs have been seen before is read from the cache
+ * rather than computed again. Once the entries exceed the byte budget, the least recently used
+ * ones are deleted.</p>
+ */
+class MergeCache {
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    // Entry name to size in bytes, in least recently used order.
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mTotalBytes;
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * Writes the merged contents of a cache entry.
+     */
+    interface MergeSource {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Creates a cache storing its entries in {@code directory} and using at most {@code maxBytes}
+     * bytes of disk space.
+     */
+    MergeCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            // Rebuild the recency order from the files' modification times.
+            Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+            for (File file : files) {
+                if (file.getName().endsWith(TEMP_SUFFIX)) {
+                    file.delete();
+                } else {
+                    mEntries.put(file.getName(), file.length());
+                    mTotalBytes += file.length();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a new digest for hashing one of the merged versions.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    /**
+     * Returns the key of a merge with {@code strategy}, given the digests of the versions' bytes
+     * in the order they are merged: the server version, then the base and modified versions of
+     * each event. An unused base version has an empty digest.
+     */
+    static String keyOf(MergeStrategy strategy, List<byte[]> versionDigests) {
+        MessageDigest digest = newDigest();
+        digest.update(strategy.name().getBytes(StandardCharsets.UTF_8));
+        for (byte[] versionDigest : versionDigests) {
+            // The length keeps an empty digest from running into the next one.
+            digest.update((byte) versionDigest.length);
+            digest.update(versionDigest);
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Opens the cached result of the merge identified by {@code key}, or returns {@code null} if
+     * it is not cached. The entry stays readable through the stream even if it is evicted.
+     */
+    synchronized InputStream open(String key) throws IOException {
+        if (mEntries.get(key) == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        File file = new File(mDirectory, key);
+        file.setLastModified(System.currentTimeMillis());
+        return new FileInputStream(file);
+    }
+
+    /**
+     * Stores the merge result written by {@code source} under {@code key} and opens the stored
+     * result for reading.
+     */
+    InputStream put(String key, MergeSource source) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create cache directory " + mDirectory);
+        }
+
+        // Merge outside the lock so that other entries stay readable meanwhile.
+        File temp = File.createTempFile("merge", TEMP_SUFFIX, mDirectory);
+        try (OutputStream out = new FileOutputStream(temp)) {
+            source.writeTo(out);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        synchronized (this) {
+            File file = new File(mDirectory, key);
+            Long previousSize = mEntries.remove(key);
+            if (previousSize != null) {
+                mTotalBytes -= previousSize;
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Unable to store merge result " + key);
+            }
+            mEntries.put(key, file.length());
+            mTotalBytes += file.length();
+            trimToSize(key);
+            return new FileInputStream(file);
+        }
+    }
+
+    /**
+     * Returns the number of lookups which found a cached result.
+     */
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of lookups which found no cached result.
+     */
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns the fraction of lookups which found a cached result.
+     */
+    synchronized double getHitRate() {
+        long lookups = mHitCount + mMissCount;
+        return lookups == 0 ? 0 : (double) mHitCount / lookups;
+    }
+
+    /**
+     * Evicts the least recently used entries other than {@code keep} until the cache fits its
+     * budget, or only {@code keep} remains.
+     */
+    private void trimToSize(String keep) {
+        Iterator<Map.Entry<String, Long>> iter = mEntries.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && iter.hasNext()) {
+            Map.Entry<String, Long> entry = iter.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            new File(mDirectory, entry.getKey()).delete();
+            mTotalBytes -= entry.getValue();
+            iter.remove();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MergeCache{entries=" + mEntries.size()
+                + ", bytes=" + mTotalBytes
+                + ", hits=" + mHitCount
+                + ", misses=" + mMissCount
+                + ", hitRate=" + getHitRate() + "}";
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.conflict;
+
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.drive.metadata.CustomPropertyKey;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * The ways in which ConflictResolver can merge conflicting versions of a file.
+ */
+enum MergeStrategy {
+    /**
+     * Treats the file as an unordered set of lines; see {@link ConflictUtil#resolveConflict}.
+     */
+    SET {
+        @Override
+        void merge(InputStream base, InputStream server, InputStream modified, OutputStream out)
+                throws IOException {
+            try (BufferedReader baseReader = newReader(base);
+                    BufferedReader serverReader = newReader(server);
+                    BufferedReader modifiedReader = newReader(modified);
+                    Writer writer = newWriter(out)) {
+                ConflictUtil.resolveConflict(baseReader, serverReader, modifiedReader, writer);
+            }
+        }
+    },
+
+    /**
+     * Merges line by line and marks conflicting changes; see {@link Diff3Merge#merge}.
+     */
+    DIFF3 {
+        @Override
+        void merge(InputStream base, InputStream server, InputStream modified, OutputStream out)
+                throws IOException {
+            try (BufferedReader baseReader = newReader(base);
+                    BufferedReader serverReader = newReader(server);
+                    BufferedReader modifiedReader = newReader(modified);
+                    Writer writer = newWriter(out)) {
+                Diff3Merge.merge(baseReader, serverReader, modifiedReader, writer,
+                        MAX_WINDOW_LINES);
+            }
+        }
+    },
+
+    /**
+     * Stores the file as a {@link ListCrdt} and merges the server and local lists without the
+     * base version.
+     */
+    CRDT {
+        @Override
+        boolean usesBase() {
+            return false;
+        }
+
+        @Override
+        void merge(InputStream base, InputStream server, InputStream modified, OutputStream out)
+                throws IOException {
+            ListCrdt list = ListCrdt.decode(server);
+            list.merge(ListCrdt.decode(modified));
+            list.encode(out);
+        }
+    };
+
+    /**
+     * The private custom property which names the strategy to use for a file. MainActivity sets
+     * it when it creates the list, and when the user picks another strategy.
+     */
+    static final CustomPropertyKey PROPERTY_KEY =
+            new CustomPropertyKey("mergeStrategy", CustomPropertyKey.PRIVATE);
+
+    /**
+     * The most lines of one version held in memory while a changed region is merged.
+     */
+    static final int MAX_WINDOW_LINES = 10000;
+
+    /**
+     * Returns whether {@link #merge} reads the base version. If not, {@code null} may be passed
+     * for it.
+     */
+    boolean usesBase() {
+        return true;
+    }
+
+    /**
+     * Merges the local and server changes made to the base content, writing the result to
+     * {@code out} as it is produced.
+     *
+     * @param base     Content local modifications are based on.
+     * @param server   Content currently on the server.
+     * @param modified Locally modified content.
+     * @param out      Receives the merged content.
+     */
+    abstract void merge(InputStream base, InputStream server, InputStream modified,
+            OutputStream out) throws IOException;
+
+    /**
+     * Returns the strategy named by the {@link #PROPERTY_KEY} property of a file, or {@link #SET}
+     * if it has none.
+     */
+    static MergeStrategy forFile(Metadata metadata) {
+        String name = metadata.getCustomProperties().get(PROPERTY_KEY);
+        if (name != null) {
+            for (MergeStrategy strategy : values()) {
+                if (strategy.name().equalsIgnoreCase(name)) {
+                    return strategy;
+                }
+            }
+        }
+        return SET;
+    }
+
+    private static BufferedReader newReader(InputStream inputStream) {
+        return new BufferedReader(new InputStreamReader(inputStream));
+    }
+
+    private static Writer newWriter(OutputStream outputStream) {
+        return new BufferedWriter(new OutputStreamWriter(outputStream));
+    }
+}
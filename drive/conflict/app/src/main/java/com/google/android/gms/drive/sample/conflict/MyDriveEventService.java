@@ -18,19 +18,18 @@ import android.util.Log;
 import com.google.android.gms.drive.events.CompletionEvent;
 import com.google.android.gms.drive.events.DriveEventService;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
 // [START drive_android_on_completion]
 public class MyDriveEventService extends DriveEventService {
     private static final String TAG = "MyDriveEventService";
-    private ExecutorService mExecutorService;
+    // The most files whose conflicts are resolved at the same time.
+    private static final int MAX_CONCURRENT_RESOLUTIONS = 4;
+    private ResolutionScheduler mResolutionScheduler;
 
     @Override
     public void onCreate() {
         super.onCreate();
         // [START_EXCLUDE]
-        mExecutorService = Executors.newSingleThreadExecutor();
+        mResolutionScheduler = new ResolutionScheduler(this, MAX_CONCURRENT_RESOLUTIONS);
         // [END_EXCLUDE]
     }
 
@@ -38,7 +37,7 @@ public class MyDriveEventService extends DriveEventService {
     public synchronized void onDestroy() {
         super.onDestroy();
         // [START_EXCLUDE]
-        mExecutorService.shutdown();
+        mResolutionScheduler.shutdown();
         // [END_EXCLUDE]
     }
 
@@ -68,9 +67,7 @@ public class MyDriveEventService extends DriveEventService {
             case CompletionEvent.STATUS_CONFLICT:
                 // Handle completion conflict.
                 // [START_EXCLUDE]
-                ConflictResolver conflictResolver =
-                        new ConflictResolver(event, this, mExecutorService);
-                conflictResolver.resolve();
+                mResolutionScheduler.submit(event);
                 eventHandled = false; // Resolver will snooze or dismiss
                 // [END_EXCLUDE]
                 break;
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.conflict;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.auth.api.signin.GoogleSignIn;
+import com.google.android.gms.auth.api.signin.GoogleSignInOptions;
+import com.google.android.gms.drive.Drive;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.DriveResourceClient;
+import com.google.android.gms.drive.events.CompletionEvent;
+import com.google.android.gms.tasks.Task;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues conflicted CompletionEvents and runs a ConflictResolver for each file.
+ *
+ * <p>Files are resolved in parallel, up to a fixed limit. Conflicts for a file which arrive
+ * before its resolution starts are coalesced into one resolution, which merges the changes of
+ * each event in turn, so none are lost even if a later event does not build on an earlier one.
+ * The events are then dismissed or snoozed together. The DriveResourceClient of each
+ * account is signed in once and shared by all of its resolutions.</p>
+ *
+ * <p>A file whose resolution failed is not tried again until a {@link RetryScheduler} allows it,
+ * even if Drive delivers its event again sooner.</p>
+ */
+class ResolutionScheduler {
+    private static final String TAG = "ResolutionScheduler";
+    private static final String RETRY_PREFERENCES = "conflict_retries";
+    private static final String MERGE_CACHE_DIRECTORY = "merges";
+    private static final long MERGE_CACHE_BYTES = 16 * 1024 * 1024;
+
+    private final Context mContext;
+    private final int mMaxConcurrentResolutions;
+    private final ScheduledExecutorService mExecutorService;
+    private final RetryScheduler mRetryScheduler;
+    private final MergeCache mMergeCache;
+
+    // Signed in clients by account name, or by "" for the default account.
+    private final Map<String, Task<DriveResourceClient>> mDriveResourceClients = new HashMap<>();
+    // Files waiting to be resolved, in the order they were queued.
+    private final Map<DriveId, PendingResolution> mPending = new LinkedHashMap<>();
+    private final Set<DriveId> mActive = new HashSet<>();
+    // Queued files which are waiting for their retry backoff to elapse.
+    private final Set<DriveId> mBackingOff = new HashSet<>();
+    // Timers which end a backoff, cancelled on shutdown so they do not keep the threads alive.
+    private final Set<ScheduledFuture<?>> mBackoffTimers = new HashSet<>();
+
+    private long mFirstSubmittedAt = -1;
+    private long mSubmittedCount;
+    private long mCoalescedCount;
+    private long mResolvedCount;
+    private long mFailedCount;
+    private long mTotalQueueMillis;
+    private long mMaxQueueMillis;
+    private long mTotalResolveMillis;
+
+    /**
+     * The events waiting to be resolved for one file, which are dismissed or snoozed together.
+     */
+    private static class PendingResolution implements RetryScheduler.RetryableEvent {
+        final DriveId driveId;
+        final List<CompletionEvent> events = new ArrayList<>();
+        final long queuedAt;
+
+        PendingResolution(DriveId driveId, long queuedAt) {
+            this.driveId = driveId;
+            this.queuedAt = queuedAt;
+        }
+
+        @Override
+        public String getKey() {
+            return driveId.encodeToString();
+        }
+
+        @Override
+        public void snooze() {
+            for (CompletionEvent event : events) {
+                event.snooze();
+            }
+        }
+
+        @Override
+        public void dismiss() {
+            for (CompletionEvent event : events) {
+                event.dismiss();
+            }
+        }
+    }
+
+    ResolutionScheduler(Context context, int maxConcurrentResolutions) {
+        if (maxConcurrentResolutions < 1) {
+            throw new IllegalArgumentException("At least one resolution must be allowed.");
+        }
+        mContext = context;
+        mMaxConcurrentResolutions = maxConcurrentResolutions;
+        mExecutorService = Executors.newScheduledThreadPool(maxConcurrentResolutions);
+        SharedPreferences retryPreferences =
+                context.getSharedPreferences(RETRY_PREFERENCES, Context.MODE_PRIVATE);
+        RetryScheduler.Clock clock = new RetryScheduler.Clock() {
+            @Override
+            public long currentTimeMillis() {
+                // Wall clock time, as the next attempt times are kept across reboots.
+                return System.currentTimeMillis();
+            }
+
+            @Override
+            public void runAfter(long delayMillis, Runnable task) {
+                scheduleBackoffTimer(delayMillis, task);
+            }
+        };
+        mRetryScheduler = new RetryScheduler(
+                new RetryScheduler.PreferencesAttemptStore(retryPreferences), clock, new Random());
+        mMergeCache = new MergeCache(
+                new File(context.getCacheDir(), MERGE_CACHE_DIRECTORY), MERGE_CACHE_BYTES);
+    }
+
+    /**
+     * Queues a conflicted event for resolution. The event is dismissed once it is resolved, or
+     * snoozed if it cannot be.
+     */
+    synchronized void submit(CompletionEvent event) {
+        if (mExecutorService.isShutdown()) {
+            event.snooze();
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (mFirstSubmittedAt < 0) {
+            mFirstSubmittedAt = now;
+        }
+        mSubmittedCount++;
+
+        DriveId driveId = event.getDriveId();
+        PendingResolution pending = mPending.get(driveId);
+        if (pending == null) {
+            pending = new PendingResolution(driveId, now);
+            mPending.put(driveId, pending);
+        } else {
+            mCoalescedCount++;
+        }
+        pending.events.add(event);
+        startResolutions();
+    }
+
+    /**
+     * Stops running resolutions. Queued events are snoozed so that Drive delivers them again.
+     */
+    synchronized void shutdown() {
+        // Backoffs can last up to an hour, and a shut down executor still runs delayed tasks.
+        for (ScheduledFuture<?> timer : mBackoffTimers) {
+            timer.cancel(false);
+        }
+        mBackoffTimers.clear();
+        mExecutorService.shutdown();
+        for (PendingResolution pending : mPending.values()) {
+            pending.snooze();
+        }
+        mPending.clear();
+    }
+
+    private synchronized void scheduleBackoffTimer(long delayMillis, Runnable task) {
+        if (mExecutorService.isShutdown()) {
+            return;
+        }
+        Iterator<ScheduledFuture<?>> iterator = mBackoffTimers.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isDone()) {
+                iterator.remove();
+            }
+        }
+        mBackoffTimers.add(mExecutorService.schedule(task, delayMillis, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Starts resolving queued files until the limit is reached. A file is not started while an
+     * earlier resolution of it is still running, or while it is backing off after a failure.
+     */
+    private void startResolutions() {
+        Iterator<Map.Entry<DriveId, PendingResolution>> iterator =
+                mPending.entrySet().iterator();
+        while (mActive.size() < mMaxConcurrentResolutions && iterator.hasNext()) {
+            Map.Entry<DriveId, PendingResolution> entry = iterator.next();
+            DriveId driveId = entry.getKey();
+            if (mActive.contains(driveId) || mBackingOff.contains(driveId)) {
+                continue;
+            }
+            if (mRetryScheduler.deferIfBackingOff(entry.getValue().getKey(),
+                    () -> onBackoffElapsed(driveId))) {
+                mBackingOff.add(driveId);
+                continue;
+            }
+            iterator.remove();
+            mActive.add(entry.getKey());
+            start(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void start(DriveId driveId, PendingResolution pending) {
+        long startedAt = SystemClock.elapsedRealtime();
+        long queueMillis = startedAt - pending.queuedAt;
+        mTotalQueueMillis += queueMillis;
+        mMaxQueueMillis = Math.max(mMaxQueueMillis, queueMillis);
+
+        CompletionEvent latest = pending.events.get(pending.events.size() - 1);
+        ConflictResolver conflictResolver = new ConflictResolver(pending.events, mContext,
+                mExecutorService, getDriveResourceClient(latest.getAccountName()), mMergeCache);
+        conflictResolver.resolve().addOnCompleteListener(mExecutorService, task ->
+                onResolutionFinished(pending, task.isSuccessful(), startedAt));
+    }
+
+    private synchronized void onResolutionFinished(PendingResolution pending, boolean resolved,
+            long startedAt) {
+        if (resolved) {
+            mResolvedCount++;
+            mRetryScheduler.onSuccess(pending);
+        } else {
+            mFailedCount++;
+            if (!mRetryScheduler.onFailure(pending)) {
+                Log.w(TAG, "Giving up on resolving conflicts for " + pending.driveId);
+            }
+        }
+        mTotalResolveMillis += SystemClock.elapsedRealtime() - startedAt;
+        mActive.remove(pending.driveId);
+        Log.d(TAG, toString() + " " + mRetryScheduler + " " + mMergeCache);
+
+        if (!mExecutorService.isShutdown()) {
+            startResolutions();
+        }
+    }
+
+    private synchronized void onBackoffElapsed(DriveId driveId) {
+        mBackingOff.remove(driveId);
+        if (!mExecutorService.isShutdown()) {
+            startResolutions();
+        }
+    }
+
+    /**
+     * Returns the signed in client for {@code accountName}, signing in only if no resolution for
+     * that account has done so already.
+     */
+    private Task<DriveResourceClient> getDriveResourceClient(String accountName) {
+        String key = accountName != null ? accountName : "";
+        Task<DriveResourceClient> clientTask = mDriveResourceClients.get(key);
+        if (clientTask == null) {
+            GoogleSignInOptions.Builder signInOptionsBuilder =
+                    new GoogleSignInOptions.Builder(GoogleSignInOptions.DEFAULT_SIGN_IN)
+                            .requestScopes(Drive.SCOPE_FILE)
+                            .requestScopes(Drive.SCOPE_APPFOLDER);
+            if (accountName != null) {
+                signInOptionsBuilder.setAccountName(accountName);
+            }
+            Task<DriveResourceClient> newClientTask =
+                    GoogleSignIn.getClient(mContext, signInOptionsBuilder.build())
+                            .silentSignIn()
+                            .continueWith(mExecutorService, signInTask ->
+                                    Drive.getDriveResourceClient(
+                                            mContext, signInTask.getResult()));
+            // Sign in again next time if this attempt fails.
+            newClientTask.addOnFailureListener(mExecutorService, e -> {
+                synchronized (this) {
+                    if (mDriveResourceClients.get(key) == newClientTask) {
+                        mDriveResourceClients.remove(key);
+                    }
+                }
+            });
+            mDriveResourceClients.put(key, newClientTask);
+            clientTask = newClientTask;
+        }
+        return clientTask;
+    }
+
+    /**
+     * Returns the number of events submitted.
+     */
+    synchronized long getSubmittedCount() {
+        return mSubmittedCount;
+    }
+
+    /**
+     * Returns the number of events merged into a resolution of a later event for the same file.
+     */
+    synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * Returns the number of resolutions that succeeded.
+     */
+    synchronized long getResolvedCount() {
+        return mResolvedCount;
+    }
+
+    /**
+     * Returns the number of resolutions that failed.
+     */
+    synchronized long getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * Returns the number of files waiting for a resolution to start.
+     */
+    synchronized int getQueueDepth() {
+        return mPending.size();
+    }
+
+    /**
+     * Returns the number of resolutions running.
+     */
+    synchronized int getActiveCount() {
+        return mActive.size();
+    }
+
+    /**
+     * Returns the mean time in milliseconds a file waited before its resolution started.
+     */
+    synchronized long getAverageQueueMillis() {
+        long started = mResolvedCount + mFailedCount + mActive.size();
+        return started == 0 ? 0 : mTotalQueueMillis / started;
+    }
+
+    /**
+     * Returns the longest time in milliseconds a file waited before its resolution started.
+     */
+    synchronized long getMaxQueueMillis() {
+        return mMaxQueueMillis;
+    }
+
+    /**
+     * Returns the mean time in milliseconds a finished resolution took.
+     */
+    synchronized long getAverageResolveMillis() {
+        long finished = mResolvedCount + mFailedCount;
+        return finished == 0 ? 0 : mTotalResolveMillis / finished;
+    }
+
+    /**
+     * Returns the retry policy, which also counts retries and give-ups.
+     */
+    RetryScheduler getRetryScheduler() {
+        return mRetryScheduler;
+    }
+
+    /**
+     * Returns the cache of merge results, which also records its hit rate.
+     */
+    MergeCache getMergeCache() {
+        return mMergeCache;
+    }
+
+    /**
+     * Returns the number of resolutions finished per second since the first event was submitted.
+     */
+    synchronized double getResolutionsPerSecond() {
+        if (mFirstSubmittedAt < 0) {
+            return 0;
+        }
+        long elapsedMillis = Math.max(1, SystemClock.elapsedRealtime() - mFirstSubmittedAt);
+        return (mResolvedCount + mFailedCount) * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return TAG + "{submitted=" + mSubmittedCount
+                + ", coalesced=" + mCoalescedCount
+                + ", resolved=" + mResolvedCount
+                + ", failed=" + mFailedCount
+                + ", queued=" + mPending.size()
+                + ", active=" + mActive.size()
+                + ", avgQueueMs=" + getAverageQueueMillis()
+                + ", maxQueueMs=" + mMaxQueueMillis
+                + ", avgResolveMs=" + getAverageResolveMillis()
+                + ", perSecond=" + getResolutionsPerSecond() + "}";
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.conflict;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Decides when a failed conflict resolution may be tried again, using exponential backoff with
+ * jitter and a maximum number of attempts per file.
+ *
+ * <p>The attempt count and the time of the next allowed attempt are kept in an {@link
+ * AttemptStore}, so the backoff carries over when the service is restarted. Time is read from a
+ * {@link Clock} and events are only handled through {@link RetryableEvent}, so the scheduler can
+ * be driven by fakes of both.</p>
+ */
+class RetryScheduler {
+    static final int DEFAULT_MAX_ATTEMPTS = 8;
+    static final long DEFAULT_BASE_DELAY_MILLIS = 30 * 1000;
+    static final long DEFAULT_MAX_DELAY_MILLIS = 60 * 60 * 1000;
+    // Each delay is reduced by a random fraction of up to this much, to spread out retries.
+    private static final double JITTER = 0.5;
+
+    private final AttemptStore mAttemptStore;
+    private final Clock mClock;
+    private final Random mRandom;
+    private final int mMaxAttempts;
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+
+    private long mDeferredCount;
+    private long mRetryCount;
+    private long mRecoveredCount;
+    private long mGiveUpCount;
+
+    /**
+     * The source of time and delayed execution.
+     */
+    interface Clock {
+        long currentTimeMillis();
+
+        void runAfter(long delayMillis, Runnable task);
+    }
+
+    /**
+     * An event, or group of events, whose handling may fail and be retried.
+     */
+    interface RetryableEvent {
+        /**
+         * Returns a stable key identifying what the event is about, such as an encoded DriveId.
+         */
+        String getKey();
+
+        /**
+         * Asks for the event to be delivered again later.
+         */
+        void snooze();
+
+        /**
+         * Marks the event as handled.
+         */
+        void dismiss();
+    }
+
+    /**
+     * Persists the number of failed attempts and the time of the next allowed attempt, by key.
+     */
+    interface AttemptStore {
+        int getAttempts(String key);
+
+        long getNextAttemptAt(String key);
+
+        void putAttempts(String key, int attempts, long nextAttemptAt);
+
+        void removeAttempts(String key);
+    }
+
+    /**
+     * An {@link AttemptStore} which only lives as long as the process.
+     */
+    static class MemoryAttemptStore implements AttemptStore {
+        private final Map<String, long[]> mAttempts = new HashMap<>();
+
+        @Override
+        public synchronized int getAttempts(String key) {
+            long[] attempts = mAttempts.get(key);
+            return attempts != null ? (int) attempts[0] : 0;
+        }
+
+        @Override
+        public synchronized long getNextAttemptAt(String key) {
+            long[] attempts = mAttempts.get(key);
+            return attempts != null ? attempts[1] : 0;
+        }
+
+        @Override
+        public synchronized void putAttempts(String key, int attempts, long nextAttemptAt) {
+            mAttempts.put(key, new long[] {attempts, nextAttemptAt});
+        }
+
+        @Override
+        public synchronized void removeAttempts(String key) {
+            mAttempts.remove(key);
+        }
+    }
+
+    /**
+     * An {@link AttemptStore} backed by {@link SharedPreferences}, which survives process death.
+     */
+    static class PreferencesAttemptStore implements AttemptStore {
+        private static final String ATTEMPTS_PREFIX = "retry_attempts_";
+        private static final String NEXT_ATTEMPT_PREFIX = "retry_next_attempt_";
+
+        private final SharedPreferences mPreferences;
+
+        PreferencesAttemptStore(SharedPreferences preferences) {
+            mPreferences = preferences;
+        }
+
+        @Override
+        public int getAttempts(String key) {
+            return mPreferences.getInt(ATTEMPTS_PREFIX + key, 0);
+        }
+
+        @Override
+        public long getNextAttemptAt(String key) {
+            return mPreferences.getLong(NEXT_ATTEMPT_PREFIX + key, 0);
+        }
+
+        @Override
+        public void putAttempts(String key, int attempts, long nextAttemptAt) {
+            mPreferences.edit()
+                    .putInt(ATTEMPTS_PREFIX + key, attempts)
+                    .putLong(NEXT_ATTEMPT_PREFIX + key, nextAttemptAt)
+                    .apply();
+        }
+
+        @Override
+        public void removeAttempts(String key) {
+            mPreferences.edit()
+                    .remove(ATTEMPTS_PREFIX + key)
+                    .remove(NEXT_ATTEMPT_PREFIX + key)
+                    .apply();
+        }
+    }
+
+    RetryScheduler(AttemptStore attemptStore, Clock clock, Random random) {
+        this(attemptStore, clock, random, DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS,
+                DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    RetryScheduler(AttemptStore attemptStore, Clock clock, Random random, int maxAttempts,
+            long baseDelayMillis, long maxDelayMillis) {
+        if (maxAttempts < 1 || baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("Invalid retry policy.");
+        }
+        mAttemptStore = attemptStore;
+        mClock = clock;
+        mRandom = random;
+        mMaxAttempts = maxAttempts;
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * If {@code key} is still backing off from a failure, arranges for {@code retry} to run once
+     * the backoff has elapsed and returns {@code true}. Otherwise returns {@code false}, and the
+     * caller may attempt right away.
+     */
+    synchronized boolean deferIfBackingOff(String key, Runnable retry) {
+        long delayMillis = mAttemptStore.getNextAttemptAt(key) - mClock.currentTimeMillis();
+        if (delayMillis <= 0) {
+            return false;
+        }
+        mDeferredCount++;
+        mClock.runAfter(delayMillis, retry);
+        return true;
+    }
+
+    /**
+     * Records that {@code event} was handled, forgetting its failures, and dismisses it.
+     */
+    synchronized void onSuccess(RetryableEvent event) {
+        String key = event.getKey();
+        if (mAttemptStore.getAttempts(key) > 0) {
+            mRecoveredCount++;
+            mAttemptStore.removeAttempts(key);
+        }
+        event.dismiss();
+    }
+
+    /**
+     * Records that handling {@code event} failed. The event is snoozed and its next attempt is
+     * delayed, or, once the maximum number of attempts is reached, the event is dismissed.
+     *
+     * @return Whether the event will be retried.
+     */
+    synchronized boolean onFailure(RetryableEvent event) {
+        String key = event.getKey();
+        int attempts = mAttemptStore.getAttempts(key) + 1;
+        if (attempts >= mMaxAttempts) {
+            mGiveUpCount++;
+            mAttemptStore.removeAttempts(key);
+            event.dismiss();
+            return false;
+        }
+        mRetryCount++;
+        mAttemptStore.putAttempts(key, attempts,
+                mClock.currentTimeMillis() + getBackoffMillis(attempts));
+        event.snooze();
+        return true;
+    }
+
+    /**
+     * Returns the delay after the given number of consecutive failures: the base delay doubled
+     * for each failure after the first, capped at the maximum delay, less a random jitter.
+     */
+    long getBackoffMillis(int attempts) {
+        long delayMillis = mBaseDelayMillis;
+        for (int i = 1; i < attempts && delayMillis < mMaxDelayMillis; i++) {
+            delayMillis *= 2;
+        }
+        delayMillis = Math.min(delayMillis, mMaxDelayMillis);
+        return delayMillis - (long) (delayMillis * JITTER * mRandom.nextDouble());
+    }
+
+    /**
+     * Returns the number of times an attempt was put off until its backoff elapsed.
+     */
+    synchronized long getDeferredCount() {
+        return mDeferredCount;
+    }
+
+    /**
+     * Returns the number of failures after which the event was snoozed for another attempt.
+     */
+    synchronized long getRetryCount() {
+        return mRetryCount;
+    }
+
+    /**
+     * Returns the number of events handled after having failed at least once.
+     */
+    synchronized long getRecoveredCount() {
+        return mRecoveredCount;
+    }
+
+    /**
+     * Returns the number of events dismissed after failing the maximum number of times.
+     */
+    synchronized long getGiveUpCount() {
+        return mGiveUpCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RetryScheduler{deferred=" + mDeferredCount
+                + ", retries=" + mRetryCount
+                + ", recovered=" + mRecoveredCount
+                + ", giveUps=" + mGiveUpCount + "}";
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.conflict;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class ConflictUtilTest {
+    @Test
+    public void streamingMergeMatchesStringMerge() throws IOException {
+        String base = "milk\neggs\nbread\n\n";
+        String current = "milk\nbread\nbutter\n";
+        String modified = "milk\neggs\nbread\napples\n";
+
+        assertEquals(ConflictUtil.resolveConflict(base, current, modified),
+                resolveStreaming(base, current, modified));
+    }
+
+    @Test
+    public void streamingMergeNormalizesCrlfLineEndings() throws IOException {
+        String merged = resolveStreaming("milk\r\neggs\r\n", "milk\r\neggs\r\nbutter\r\n",
+                "milk\neggs\napples\n");
+
+        // The CRLF and LF versions of each item are the same item.
+        assertEquals("milk\neggs\nbutter\napples\n", merged);
+    }
+
+    private static String resolveStreaming(String base, String current, String modified)
+            throws IOException {
+        StringWriter out = new StringWriter();
+        ConflictUtil.resolveConflict(new BufferedReader(new StringReader(base)),
+                new BufferedReader(new StringReader(current)),
+                new BufferedReader(new StringReader(modified)), out);
+        return out.toString();
+    }
+}
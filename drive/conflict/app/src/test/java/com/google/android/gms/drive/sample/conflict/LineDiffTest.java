@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.conflict;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LineDiffTest {
+    @Test
+    public void sparseEditPastMaxCostKeepsSmallHunks() {
+        int count = 5000;
+        int[] a = new int[count];
+        int[] b = new int[count];
+        for (int i = 0; i < count; i++) {
+            a[i] = i;
+            b[i] = i % 3 == 0 ? -i - 1 : i;
+        }
+
+        List<LineDiff.Hunk> hunks = LineDiff.diff(a, b);
+
+        assertTrue((count + 2) / 3 > LineDiff.MAX_COST);
+        assertEquals((count + 2) / 3, hunks.size());
+        for (LineDiff.Hunk hunk : hunks) {
+            assertEquals(1, hunk.baseEnd - hunk.baseStart);
+            assertEquals(1, hunk.newEnd - hunk.newStart);
+        }
+        assertAppliesTo(a, b, hunks);
+    }
+
+    @Test
+    public void unrelatedSequencesBecomeOneHunk() {
+        int count = 3 * LineDiff.MAX_COST;
+        int[] a = new int[count];
+        int[] b = new int[count];
+        for (int i = 0; i < count; i++) {
+            a[i] = i;
+            b[i] = -i - 1;
+        }
+
+        List<LineDiff.Hunk> hunks = LineDiff.diff(a, b);
+
+        assertEquals(1, hunks.size());
+        assertAppliesTo(a, b, hunks);
+    }
+
+    @Test
+    public void exactDiffNeverReplacesCommonLines() {
+        int count = 4 * LineDiff.MAX_COST;
+        int[] a = new int[count];
+        int[] b = new int[count];
+        for (int i = 0; i < count; i++) {
+            a[i] = i;
+            b[i] = i % 2 == 0 ? -i - 1 : i;
+        }
+
+        List<LineDiff.Hunk> hunks = LineDiff.diffExact(a, b);
+
+        int replaced = 0;
+        for (LineDiff.Hunk hunk : hunks) {
+            replaced += hunk.baseEnd - hunk.baseStart;
+        }
+        assertEquals(count / 2, replaced);
+        assertAppliesTo(a, b, hunks);
+    }
+
+    /**
+     * Asserts that applying {@code hunks} to {@code a} gives {@code b}.
+     */
+    private static void assertAppliesTo(int[] a, int[] b, List<LineDiff.Hunk> hunks) {
+        List<Integer> result = new ArrayList<>();
+        int x = 0;
+        for (LineDiff.Hunk hunk : hunks) {
+            assertTrue(hunk.baseStart >= x);
+            while (x < hunk.baseStart) {
+                result.add(a[x++]);
+            }
+            for (int y = hunk.newStart; y < hunk.newEnd; y++) {
+                result.add(b[y]);
+            }
+            x = hunk.baseEnd;
+        }
+        while (x < a.length) {
+            result.add(a[x++]);
+        }
+        assertEquals(b.length, result.size());
+        for (int i = 0; i < b.length; i++) {
+            assertEquals(b[i], (int) result.get(i));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.conflict;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ListCrdtTest {
+    private static final int ITEM_COUNT = 10000;
+
+    @Test
+    public void remoteRemovalsSurviveLargeLocalEdit() throws IOException {
+        List<String> baseItems = new ArrayList<>();
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            baseItems.add("item" + i);
+        }
+        ListCrdt base = new ListCrdt(1);
+        base.setItems(baseItems);
+        byte[] encoded = base.toByteArray();
+
+        // The local edit replaces every third item and inserts one after every fifth, far more
+        // edits than LineDiff.MAX_COST.
+        ListCrdt local = ListCrdt.decode(new ByteArrayInputStream(encoded), 2);
+        List<String> localItems = new ArrayList<>();
+        List<String> keptItems = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            if (i % 3 == 0) {
+                localItems.add("edited" + i);
+                expected.add("edited" + i);
+            } else {
+                localItems.add(baseItems.get(i));
+                keptItems.add(baseItems.get(i));
+            }
+            if (i % 5 == 0) {
+                localItems.add("inserted" + i);
+                expected.add("inserted" + i);
+            }
+        }
+        local.setItems(localItems);
+
+        // Meanwhile the server removes every item the local edit keeps.
+        ListCrdt server = ListCrdt.decode(new ByteArrayInputStream(encoded), 3);
+        List<String> serverItems = new ArrayList<>(baseItems);
+        serverItems.removeAll(keptItems);
+        server.setItems(serverItems);
+
+        local.merge(ListCrdt.decode(new ByteArrayInputStream(server.toByteArray())));
+
+        // Were any kept item replaced by a copy with a new ID, the copy would survive the merge.
+        assertEquals(expected, local.getItems());
+    }
+}
@@ -26,10 +26,6 @@ import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.gms.tasks.Task;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.Date;
 
 /**
@@ -59,16 +55,9 @@ public class AppendContentsActivity extends BaseDemoActivity {
         openTask.continueWithTask(task -> {
             DriveContents driveContents = task.getResult();
             ParcelFileDescriptor pfd = driveContents.getParcelFileDescriptor();
-            long bytesToSkip = pfd.getStatSize();
-            try (InputStream in = new FileInputStream(pfd.getFileDescriptor())) {
-                // Skip to end of file
-                while (bytesToSkip > 0) {
-                    long skipped = in.skip(bytesToSkip);
-                    bytesToSkip -= skipped;
-                }
-            }
-            try (OutputStream out = new FileOutputStream(pfd.getFileDescriptor())) {
-                out.write("Hello world".getBytes());
+            // Write from the end of the file without reading what is already there.
+            try (ContentsAppender appender = new ContentsAppender(pfd)) {
+                appender.append("Hello world");
             }
             // [START drive_android_commit_contents_with_metadata]
             MetadataChangeSet changeSet = new MetadataChangeSet.Builder()
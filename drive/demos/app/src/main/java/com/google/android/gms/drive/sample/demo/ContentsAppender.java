@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.demo;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Appends to the end of a file opened with {@link
+ * com.google.android.gms.drive.DriveFile#MODE_READ_WRITE}, writing through a {@link FileChannel}
+ * on the contents' file descriptor.
+ *
+ * <p>The channel is positioned at the end of the contents once, so none of the existing bytes
+ * are read. Data can be appended from buffers, from text encoded as UTF-8, or from another
+ * channel, which is copied with {@link FileChannel#transferFrom} and so may avoid passing through
+ * user space at all.</p>
+ */
+public class ContentsAppender implements Closeable {
+    private final FileOutputStream mOutputStream;
+    private final FileChannel mChannel;
+    private final long mInitialSize;
+
+    /**
+     * Creates an appender positioned at the end of the contents behind {@code pfd}. The
+     * descriptor stays open when the appender is closed.
+     */
+    public ContentsAppender(ParcelFileDescriptor pfd) throws IOException {
+        mOutputStream = new FileOutputStream(pfd.getFileDescriptor());
+        mChannel = mOutputStream.getChannel();
+        mInitialSize = mChannel.size();
+        mChannel.position(mInitialSize);
+    }
+
+    /**
+     * Appends the remaining bytes of {@code source}.
+     */
+    public void append(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            mChannel.write(source);
+        }
+    }
+
+    /**
+     * Appends {@code text} encoded as UTF-8.
+     */
+    public void append(CharSequence text) throws IOException {
+        append(StandardCharsets.UTF_8.encode(CharBuffer.wrap(text)));
+    }
+
+    /**
+     * Appends up to {@code count} bytes read from {@code source}, stopping early if it reaches
+     * its end, and returns the number of bytes appended.
+     */
+    public long transferFrom(ReadableByteChannel source, long count) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long position = mChannel.position();
+            long n = mChannel.transferFrom(source, position, count - transferred);
+            if (n <= 0) {
+                break;
+            }
+            // Unlike write(), transferFrom() leaves the channel's position unchanged.
+            mChannel.position(position + n);
+            transferred += n;
+        }
+        return transferred;
+    }
+
+    /**
+     * Appends the remaining bytes of {@code source}, from its current position to its end, and
+     * returns the number of bytes appended.
+     */
+    public long transferFrom(FileChannel source) throws IOException {
+        return transferFrom(source, source.size() - source.position());
+    }
+
+    /**
+     * Returns the number of bytes appended so far.
+     */
+    public long getAppendedBytes() throws IOException {
+        return mChannel.position() - mInitialSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOutputStream.close();
+    }
+}
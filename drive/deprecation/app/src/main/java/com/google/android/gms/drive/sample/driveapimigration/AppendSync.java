@@ -0,0 +1,255 @@
+/**
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.driveapimigration;
+
+import android.content.SharedPreferences;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Uploads local copies of Drive files which are only ever appended to, such as logs, sending
+ * nothing when the contents are already in sync.
+ *
+ * <p>The length and MD5 checksum of the contents last synced for each file are kept in a {@link
+ * SyncStateStore}. Before uploading, the local contents are hashed in a single pass and compared
+ * with the file's {@code md5Checksum} in Drive, which costs one small metadata request:</p>
+ *
+ * <ul>
+ *   <li>If the checksums match, nothing is uploaded.</li>
+ *   <li>If Drive still holds the synced contents, the local contents are uploaded with the
+ *   {@link ResumableUploader}, so an interrupted upload continues from the last acknowledged
+ *   chunk.</li>
+ *   <li>If the file was changed in Drive since the last sync, the upload is refused rather than
+ *   overwriting those changes, and {@link #getAppendedOffset} tells the caller which local bytes
+ *   were appended since then.</li>
+ * </ul>
+ *
+ * <p>Drive replaces a file's contents as a whole; it cannot receive a byte range or a delta to
+ * apply to an existing revision. A changed file is therefore always uploaded in full, and the
+ * savings come from the uploads which are skipped or resumed.</p>
+ */
+public class AppendSync {
+    private static final String SYNC_FIELDS = FieldMask.of("id", "size", "md5Checksum").forFile();
+
+    private final Drive mDriveService;
+    private final ResumableUploader mUploader;
+    private final SyncStateStore mSyncStateStore;
+
+    private long mSkippedCount;
+    private long mUploadedCount;
+    private long mUploadedBytes;
+
+    /**
+     * The outcome of {@link #sync}.
+     */
+    public enum Result {
+        /** Drive already held the local contents, so nothing was uploaded. */
+        UNCHANGED,
+        /** The local contents were uploaded. */
+        UPLOADED
+    }
+
+    /**
+     * Persists the length and MD5 checksum of the contents last synced, keyed by Drive file ID.
+     */
+    public interface SyncStateStore {
+        /**
+         * Returns the length of the contents last synced, or -1 if the file was never synced.
+         */
+        long getSyncedLength(String fileId);
+
+        String getSyncedChecksum(String fileId);
+
+        void putSyncState(String fileId, long length, String checksum);
+
+        void removeSyncState(String fileId);
+    }
+
+    /**
+     * A {@link SyncStateStore} which only lives as long as the process.
+     */
+    public static class MemorySyncStateStore implements SyncStateStore {
+        private final Map<String, Long> mLengths = new HashMap<>();
+        private final Map<String, String> mChecksums = new HashMap<>();
+
+        @Override
+        public synchronized long getSyncedLength(String fileId) {
+            Long length = mLengths.get(fileId);
+            return length != null ? length : -1;
+        }
+
+        @Override
+        public synchronized String getSyncedChecksum(String fileId) {
+            return mChecksums.get(fileId);
+        }
+
+        @Override
+        public synchronized void putSyncState(String fileId, long length, String checksum) {
+            mLengths.put(fileId, length);
+            mChecksums.put(fileId, checksum);
+        }
+
+        @Override
+        public synchronized void removeSyncState(String fileId) {
+            mLengths.remove(fileId);
+            mChecksums.remove(fileId);
+        }
+    }
+
+    /**
+     * A {@link SyncStateStore} backed by {@link SharedPreferences}, which survives process death.
+     */
+    public static class PreferencesSyncStateStore implements SyncStateStore {
+        private static final String LENGTH_PREFIX = "synced_length_";
+        private static final String CHECKSUM_PREFIX = "synced_md5_";
+
+        private final SharedPreferences mPreferences;
+
+        public PreferencesSyncStateStore(SharedPreferences preferences) {
+            mPreferences = preferences;
+        }
+
+        @Override
+        public long getSyncedLength(String fileId) {
+            return mPreferences.getLong(LENGTH_PREFIX + fileId, -1);
+        }
+
+        @Override
+        public String getSyncedChecksum(String fileId) {
+            return mPreferences.getString(CHECKSUM_PREFIX + fileId, null);
+        }
+
+        @Override
+        public void putSyncState(String fileId, long length, String checksum) {
+            mPreferences.edit()
+                    .putLong(LENGTH_PREFIX + fileId, length)
+                    .putString(CHECKSUM_PREFIX + fileId, checksum)
+                    .apply();
+        }
+
+        @Override
+        public void removeSyncState(String fileId) {
+            mPreferences.edit()
+                    .remove(LENGTH_PREFIX + fileId)
+                    .remove(CHECKSUM_PREFIX + fileId)
+                    .apply();
+        }
+    }
+
+    public AppendSync(Drive driveService, ResumableUploader uploader,
+            SyncStateStore syncStateStore) {
+        mDriveService = driveService;
+        mUploader = uploader;
+        mSyncStateStore = syncStateStore;
+    }
+
+    /**
+     * Brings the file identified by {@code fileId} in Drive up to date with {@code local}, which
+     * must be readable from its start to its end.
+     *
+     * <p>The first sync of a file uploads the local contents unless Drive already holds them.
+     * Afterwards, an {@link IOException} is thrown if the file was changed in Drive since the
+     * previous sync, leaving it untouched.</p>
+     */
+    public Result sync(String fileId, String mimeType, FileChannel local, int chunkSize)
+            throws IOException {
+        File remote = mDriveService.files().get(fileId).setFields(SYNC_FIELDS).execute();
+        String remoteChecksum = remote.getMd5Checksum();
+        long syncedLength = mSyncStateStore.getSyncedLength(fileId);
+        String syncedChecksum = mSyncStateStore.getSyncedChecksum(fileId);
+
+        long length = local.size();
+        String checksum = ResumableUploader.checksumOf(local, length);
+        if (checksum.equals(remoteChecksum)) {
+            mSyncStateStore.putSyncState(fileId, length, checksum);
+            synchronized (this) {
+                mSkippedCount++;
+            }
+            return Result.UNCHANGED;
+        }
+        if (syncedChecksum != null && !syncedChecksum.equals(remoteChecksum)) {
+            throw new IOException("File " + fileId + " was changed in Drive after "
+                    + syncedLength + " bytes were synced.");
+        }
+
+        File uploaded = mUploader.upload(fileId, new File(), mimeType, local, chunkSize,
+                checksum);
+        // The upload response carries only the default fields, so confirm the checksum that
+        // the next sync will be compared against.
+        remote = mDriveService.files().get(uploaded.getId()).setFields(SYNC_FIELDS).execute();
+        if (!checksum.equals(remote.getMd5Checksum())) {
+            // The local contents changed during the upload; the next sync uploads them again.
+            mSyncStateStore.removeSyncState(fileId);
+            throw new IOException("Contents of " + fileId + " changed while being uploaded.");
+        }
+        mSyncStateStore.putSyncState(fileId, length, checksum);
+        synchronized (this) {
+            mUploadedCount++;
+            mUploadedBytes += length;
+        }
+        return Result.UPLOADED;
+    }
+
+    /**
+     * Returns the offset in {@code local} of the bytes appended since the file identified by
+     * {@code fileId} was last synced, or -1 if it was never synced or {@code local} no longer
+     * starts with the synced contents.
+     *
+     * <p>After {@link #sync} refuses to overwrite changes made in Drive, the bytes from this offset
+     * onwards can be appended to a fresh copy of the file and synced again.</p>
+     */
+    public long getAppendedOffset(String fileId, FileChannel local) throws IOException {
+        long syncedLength = mSyncStateStore.getSyncedLength(fileId);
+        String syncedChecksum = mSyncStateStore.getSyncedChecksum(fileId);
+        if (syncedLength < 0 || syncedChecksum == null || local.size() < syncedLength) {
+            return -1;
+        }
+        String checksum = ResumableUploader.checksumOf(local, syncedLength);
+        return syncedChecksum.equals(checksum) ? syncedLength : -1;
+    }
+
+    /**
+     * Returns the number of syncs which found Drive already up to date.
+     */
+    public synchronized long getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    /**
+     * Returns the number of syncs which uploaded the local contents.
+     */
+    public synchronized long getUploadedCount() {
+        return mUploadedCount;
+    }
+
+    /**
+     * Returns the total size of the contents uploaded by {@link #sync}.
+     */
+    public synchronized long getUploadedBytes() {
+        return mUploadedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AppendSync{skipped=" + mSkippedCount
+                + ", uploaded=" + mUploadedCount
+                + ", uploadedBytes=" + mUploadedBytes + "}";
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.driveapimigration;
+
+import android.util.Log;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.File;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks changes to the files visible to this app using the Drive {@code changes.list} feed and
+ * delivers them to registered {@link ChangeListener}s.
+ *
+ * <p>The feed's page token is saved in a {@link PageTokenStore} after each catch-up, so only the
+ * changes made since the previous catch-up are ever fetched. All pages of a catch-up are read
+ * before listeners are notified, and a file changed several times is reported once with its latest
+ * state. The token is saved after the listeners return, so changes are delivered at least once
+ * and listeners must tolerate seeing the same changes again.</p>
+ *
+ * <p>The feed polls on a thread of its own, which is stopped by {@link #close()}.</p>
+ */
+public class ChangesFeed implements Closeable {
+    private static final String TAG = "ChangesFeed";
+
+    private static final int PAGE_SIZE = 1000;
+    private static final String CHANGES_FIELDS =
+            "nextPageToken, newStartPageToken, changes(fileId, removed, file("
+                    + FieldMask.VERSION.forFile() + "))";
+
+    private final Drive mDriveService;
+    private final PageTokenStore mPageTokenStore;
+    private final List<ChangeListener> mListeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService mScheduler =
+            Executors.newSingleThreadScheduledExecutor();
+    private final Object mCatchUpLock = new Object();
+    private ScheduledFuture<?> mPolling;
+
+    /**
+     * Receives the changes found by a catch-up.
+     */
+    public interface ChangeListener {
+        /**
+         * Called with the files changed since the previous catch-up, keyed by file ID. Removed
+         * files map to {@code null}. Called on a background thread.
+         */
+        void onFilesChanged(Map<String, File> changes);
+    }
+
+    /**
+     * Persists the position in the changes feed.
+     */
+    public interface PageTokenStore {
+        String getPageToken();
+
+        void setPageToken(String pageToken);
+    }
+
+    /**
+     * A {@link PageTokenStore} which only lives as long as the process.
+     */
+    public static class MemoryPageTokenStore implements PageTokenStore {
+        private volatile String mPageToken;
+
+        @Override
+        public String getPageToken() {
+            return mPageToken;
+        }
+
+        @Override
+        public void setPageToken(String pageToken) {
+            mPageToken = pageToken;
+        }
+    }
+
+    public ChangesFeed(Drive driveService, PageTokenStore pageTokenStore) {
+        mDriveService = driveService;
+        mPageTokenStore = pageTokenStore;
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Catches up with the feed once, notifying listeners of any changes.
+     */
+    public Task<Void> poll() {
+        return Tasks.call(mScheduler, () -> {
+                catchUp();
+                return null;
+            });
+    }
+
+    /**
+     * Catches up with the feed every {@code intervalMillis} milliseconds until {@link #stop()} is
+     * called.
+     */
+    public synchronized void start(long intervalMillis) {
+        stop();
+        mPolling = mScheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    catchUp();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to read the changes feed.", e);
+                }
+            }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops catching up with the feed periodically.
+     */
+    public synchronized void stop() {
+        if (mPolling != null) {
+            mPolling.cancel(false);
+            mPolling = null;
+        }
+    }
+
+    /**
+     * Stops polling and releases the feed's thread once any catch-up in progress finishes. The
+     * feed cannot be polled or started afterwards, though {@link #catchUp()} may still be called
+     * on another thread.
+     */
+    @Override
+    public synchronized void close() {
+        stop();
+        mScheduler.shutdown();
+    }
+
+    /**
+     * Reads every change since the saved page token on the calling thread, notifies listeners,
+     * and then saves the new page token. If no token has been saved yet, the current position of
+     * the feed is saved and no changes are reported.
+     */
+    void catchUp() throws IOException {
+        synchronized (mCatchUpLock) {
+            String pageToken = mPageTokenStore.getPageToken();
+            if (pageToken == null) {
+                mPageTokenStore.setPageToken(mDriveService.changes().getStartPageToken()
+                        .execute()
+                        .getStartPageToken());
+                return;
+            }
+
+            Map<String, File> changes = new LinkedHashMap<>();
+            String newStartPageToken = null;
+            while (newStartPageToken == null) {
+                ChangeList changeList = mDriveService.changes().list(pageToken)
+                        .setSpaces("drive")
+                        .setFields(CHANGES_FIELDS)
+                        .setPageSize(PAGE_SIZE)
+                        .execute();
+
+                List<Change> pageChanges = changeList.getChanges() != null
+                        ? changeList.getChanges()
+                        : Collections.emptyList();
+                for (Change change : pageChanges) {
+                    // Later changes to the same file replace earlier ones.
+                    boolean removed = Boolean.TRUE.equals(change.getRemoved());
+                    changes.put(change.getFileId(), removed ? null : change.getFile());
+                }
+
+                newStartPageToken = changeList.getNewStartPageToken();
+                pageToken = changeList.getNextPageToken();
+            }
+
+            if (!changes.isEmpty()) {
+                Map<String, File> unmodifiableChanges = Collections.unmodifiableMap(changes);
+                for (ChangeListener listener : mListeners) {
+                    listener.onFilesChanged(unmodifiableChanges);
+                }
+            }
+            mPageTokenStore.setPageToken(newStartPageToken);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.driveapimigration;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A disk cache of Drive file contents, keyed by file ID and content version.
+ *
+ * <p>The version is the file's {@code md5Checksum}, or its {@code headRevisionId} for files
+ * without a checksum, so a cached copy is only used while the file in Drive is unchanged. Each
+ * entry is stored as a plain file, which is opened while the cache is locked so that a concurrent
+ * update or eviction cannot delete it before it is read, and which can be memory-mapped with
+ * {@link #map(FileInputStream)}. Once the total size of the entries exceeds the byte budget, the
+ * least recently used entries are deleted.</p>
+ */
+public class ContentCache {
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    // Cache file name to size in bytes, in least recently used order.
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mTotalBytes;
+
+    /**
+     * Writes the contents of a cache entry.
+     */
+    public interface ContentSource {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Creates a cache storing its entries in {@code directory} and using at most {@code maxBytes}
+     * bytes of disk space.
+     */
+    public ContentCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            // Rebuild the recency order from the files' modification times.
+            Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+            for (File file : files) {
+                if (file.getName().endsWith(TEMP_SUFFIX)) {
+                    file.delete();
+                } else {
+                    mEntries.put(file.getName(), file.length());
+                    mTotalBytes += file.length();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the version to cache {@code metadata}'s contents under, or {@code null} if the file
+     * has no version information and cannot be cached.
+     */
+    public static String versionOf(com.google.api.services.drive.model.File metadata) {
+        if (metadata.getMd5Checksum() != null) {
+            return metadata.getMd5Checksum();
+        }
+        return metadata.getHeadRevisionId();
+    }
+
+    /**
+     * Opens the cached contents of version {@code version} of the file identified by {@code
+     * fileId}, or returns {@code null} if they are not cached. The entry stays readable through the
+     * stream even if it is evicted.
+     */
+    public synchronized FileInputStream open(String fileId, String version) throws IOException {
+        String name = entryName(fileId, version);
+        if (mEntries.get(name) == null) {
+            return null;
+        }
+        File file = new File(mDirectory, name);
+        file.setLastModified(System.currentTimeMillis());
+        return new FileInputStream(file);
+    }
+
+    /**
+     * Stores the contents written by {@code source} as version {@code version} of the file
+     * identified by {@code fileId}, replacing any other cached version, and opens the stored
+     * contents for reading.
+     */
+    public FileInputStream put(String fileId, String version, ContentSource source)
+            throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create cache directory " + mDirectory);
+        }
+
+        // Write outside the lock so other entries stay readable during a long download.
+        String name = entryName(fileId, version);
+        File temp = File.createTempFile(fileId, TEMP_SUFFIX, mDirectory);
+        try (OutputStream out = new FileOutputStream(temp)) {
+            source.writeTo(out);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        synchronized (this) {
+            removeVersions(fileId);
+            File file = new File(mDirectory, name);
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Unable to store cache entry " + name);
+            }
+            mEntries.put(name, file.length());
+            mTotalBytes += file.length();
+            trimToSize(name);
+            return new FileInputStream(file);
+        }
+    }
+
+    /**
+     * Removes every cached version of the file identified by {@code fileId}.
+     */
+    public synchronized void remove(String fileId) {
+        removeVersions(fileId);
+    }
+
+    /**
+     * Returns the total size in bytes of the cached entries.
+     */
+    public synchronized long size() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Maps the cached contents opened as {@code in} into memory for reading, and closes {@code
+     * in}. The mapping stays valid after the stream is closed.
+     */
+    public static MappedByteBuffer map(FileInputStream in) throws IOException {
+        try (FileChannel channel = in.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private void removeVersions(String fileId) {
+        String prefix = fileId + ".";
+        for (Iterator<Map.Entry<String, Long>> iter = mEntries.entrySet().iterator();
+                iter.hasNext();) {
+            Map.Entry<String, Long> entry = iter.next();
+            if (entry.getKey().startsWith(prefix)) {
+                new File(mDirectory, entry.getKey()).delete();
+                mTotalBytes -= entry.getValue();
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries other than {@code keep} until the cache fits its
+     * budget, or only {@code keep} remains.
+     */
+    private void trimToSize(String keep) {
+        Iterator<Map.Entry<String, Long>> iter = mEntries.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && iter.hasNext()) {
+            Map.Entry<String, Long> entry = iter.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            new File(mDirectory, entry.getKey()).delete();
+            mTotalBytes -= entry.getValue();
+            iter.remove();
+        }
+    }
+
+    private static String entryName(String fileId, String version) {
+        // Drive file IDs and versions only contain characters which are safe in file names.
+        return fileId + "." + version;
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.driveapimigration;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups Drive metadata operations into batch HTTP requests.
+ *
+ * <p>Operations are queued with {@link #create(File)}, {@link #rename(String, String)}, {@link
+ * #delete(String)} and {@link #update(String, File)}, each of which returns a {@link Task} for that
+ * operation alone. Calling {@link #execute()} sends the queued operations in batches of up to
+ * {@link #MAX_BATCH_SIZE}. Operations rejected because of rate limiting, whether one by one or
+ * as a whole batch, are sent again in smaller batches after an exponential backoff; any other
+ * failure fails only that operation's task. Each operation's task completes exactly once.</p>
+ *
+ * <p>The backoff is scheduled rather than slept, so the executor's threads stay free to run other
+ * requests meanwhile.</p>
+ */
+public class DriveBatch {
+    /**
+     * The largest number of operations the Drive API accepts in one batch request.
+     */
+    public static final int MAX_BATCH_SIZE = 100;
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+
+    // Only hands retries back to the batch's executor once their backoff has elapsed.
+    private static final ScheduledThreadPoolExecutor sRetryTimer;
+
+    static {
+        sRetryTimer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "drive-batch-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sRetryTimer.setKeepAliveTime(30, TimeUnit.SECONDS);
+        sRetryTimer.allowCoreThreadTimeOut(true);
+    }
+
+    private final Drive mDriveService;
+    private final Executor mExecutor;
+    private final Random mRandom = new Random();
+    private List<Operation<?>> mOperations = new ArrayList<>();
+
+    /**
+     * A queued request and the task to complete with its result.
+     */
+    private static class Operation<T> {
+        final DriveRequest<T> mRequest;
+        final TaskCompletionSource<T> mResult = new TaskCompletionSource<>();
+
+        Operation(DriveRequest<T> request) {
+            mRequest = request;
+        }
+    }
+
+    DriveBatch(Drive driveService, Executor executor) {
+        mDriveService = driveService;
+        mExecutor = executor;
+    }
+
+    /**
+     * Queues the creation of a file with the given {@code metadata}.
+     */
+    public Task<File> create(File metadata) throws IOException {
+        return add(mDriveService.files().create(metadata).setFields(FieldMask.ID.forFile()));
+    }
+
+    /**
+     * Queues renaming the file identified by {@code fileId} to {@code name}.
+     */
+    public Task<File> rename(String fileId, String name) throws IOException {
+        return update(fileId, new File().setName(name));
+    }
+
+    /**
+     * Queues applying the changes in {@code metadata} to the file identified by {@code fileId}.
+     */
+    public Task<File> update(String fileId, File metadata) throws IOException {
+        return add(mDriveService.files().update(fileId, metadata)
+                .setFields(FieldMask.ID_AND_NAME.forFile()));
+    }
+
+    /**
+     * Queues permanently deleting the file identified by {@code fileId}.
+     */
+    public Task<Void> delete(String fileId) throws IOException {
+        return add(mDriveService.files().delete(fileId));
+    }
+
+    /**
+     * Sends every queued operation and returns a {@link Task} which completes once each operation
+     * has either succeeded or failed. The outcome of each operation is reported through the task
+     * returned when it was queued.
+     */
+    public Task<Void> execute() {
+        List<Operation<?>> operations = mOperations;
+        mOperations = new ArrayList<>();
+        TaskCompletionSource<Void> done = new TaskCompletionSource<>();
+        runAttempt(operations, MAX_BATCH_SIZE, 1, done);
+        return done.getTask();
+    }
+
+    /**
+     * Sends {@code operations} on the executor in batches of {@code batchSize}, and schedules
+     * another attempt for those which were rate limited.
+     */
+    private void runAttempt(List<Operation<?>> operations, int batchSize, int attempt,
+            TaskCompletionSource<Void> done) {
+        try {
+            mExecutor.execute(() -> {
+                List<Operation<?>> rateLimited = new ArrayList<>();
+                try {
+                    for (int start = 0; start < operations.size(); start += batchSize) {
+                        int end = Math.min(start + batchSize, operations.size());
+                        send(operations.subList(start, end), rateLimited);
+                    }
+                } catch (RuntimeException e) {
+                    fail(operations, e, done);
+                    return;
+                }
+
+                if (rateLimited.isEmpty()) {
+                    done.trySetResult(null);
+                } else if (attempt == MAX_ATTEMPTS) {
+                    fail(rateLimited, new IOException(
+                            "Rate limit exceeded after " + MAX_ATTEMPTS + " attempts."), done);
+                } else {
+                    // Retry the rejected operations in smaller batches after backing off.
+                    long backoff = (INITIAL_BACKOFF_MILLIS << (attempt - 1))
+                            + mRandom.nextInt((int) INITIAL_BACKOFF_MILLIS);
+                    sRetryTimer.schedule(
+                            () -> runAttempt(rateLimited, Math.max(1, batchSize / 2),
+                                    attempt + 1, done),
+                            backoff, TimeUnit.MILLISECONDS);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            fail(operations, e, done);
+        }
+    }
+
+    /**
+     * Fails every operation in {@code operations} which has not completed yet, and then {@code
+     * done}.
+     */
+    private static void fail(List<Operation<?>> operations, Exception e,
+            TaskCompletionSource<Void> done) {
+        for (Operation<?> operation : operations) {
+            operation.mResult.trySetException(e);
+        }
+        done.trySetException(e);
+    }
+
+    private <T> Task<T> add(DriveRequest<T> request) {
+        Operation<T> operation = new Operation<>(request);
+        mOperations.add(operation);
+        return operation.mResult.getTask();
+    }
+
+    /**
+     * Sends {@code operations} as a single batch, adding any which were rate limited to {@code
+     * rateLimited}. Every other operation's task is completed.
+     */
+    private void send(List<Operation<?>> operations, List<Operation<?>> rateLimited) {
+        BatchRequest batch = mDriveService.batch();
+        List<Operation<?>> batchRateLimited = new ArrayList<>();
+        try {
+            for (Operation<?> operation : operations) {
+                queue(batch, operation, batchRateLimited);
+            }
+            batch.execute();
+        } catch (IOException e) {
+            // The batch as a whole failed, possibly after some responses were handled. Retry
+            // the remaining operations if the batch was rate limited, and fail them otherwise.
+            boolean retry = e instanceof HttpResponseException
+                    && isRateLimited((HttpResponseException) e);
+            for (Operation<?> operation : operations) {
+                if (!operation.mResult.getTask().isComplete()
+                        && !batchRateLimited.contains(operation)) {
+                    if (retry) {
+                        batchRateLimited.add(operation);
+                    } else {
+                        operation.mResult.setException(e);
+                    }
+                }
+            }
+        }
+        rateLimited.addAll(batchRateLimited);
+    }
+
+    private <T> void queue(BatchRequest batch, Operation<T> operation,
+            List<Operation<?>> rateLimited) throws IOException {
+        operation.mRequest.queue(batch, new JsonBatchCallback<T>() {
+            @Override
+            public void onSuccess(T result, HttpHeaders responseHeaders) {
+                operation.mResult.trySetResult(result);
+            }
+
+            @Override
+            public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                if (isRateLimited(error)) {
+                    rateLimited.add(operation);
+                } else {
+                    operation.mResult.trySetException(new GoogleJsonResponseException(
+                            new HttpResponseException.Builder(
+                                    error.getCode(), error.getMessage(), responseHeaders),
+                            error));
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns whether a whole batch request was rejected because of rate limiting.
+     */
+    private static boolean isRateLimited(HttpResponseException e) {
+        if (e.getStatusCode() == 429) {
+            return true;
+        }
+        String content = e.getContent();
+        return e.getStatusCode() == 403 && content != null
+                && (content.contains("rateLimitExceeded")
+                        || content.contains("userRateLimitExceeded"));
+    }
+
+    private static boolean isRateLimited(GoogleJsonError error) {
+        if (error.getCode() == 429) {
+            return true;
+        }
+        if (error.getCode() == 403 && error.getErrors() != null) {
+            for (GoogleJsonError.ErrorInfo info : error.getErrors()) {
+                String reason = info.getReason();
+                if ("rateLimitExceeded".equals(reason) || "userRateLimitExceeded".equals(reason)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
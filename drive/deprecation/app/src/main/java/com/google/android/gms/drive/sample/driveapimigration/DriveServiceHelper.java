@@ -27,77 +27,332 @@ import com.google.api.client.http.ByteArrayContent;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
-import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 /**
  * A utility for performing read/write operations on Drive files via the REST API and opening a
  * file picker UI via Storage Access Framework.
  */
 public class DriveServiceHelper {
-    private final Executor mExecutor = Executors.newSingleThreadExecutor();
+    /**
+     * The size of each ranged request issued when streaming file contents.
+     */
+    private static final int DOWNLOAD_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The default number of metadata requests which may run at once.
+     */
+    public static final int DEFAULT_METADATA_PARALLELISM = 4;
+
+    /**
+     * The default number of content downloads and uploads which may run at once.
+     */
+    public static final int DEFAULT_MEDIA_PARALLELISM = 2;
+
+    private final ExecutionLane mMetadataLane;
+    private final ExecutionLane mMediaLane;
     private final Drive mDriveService;
+    private final ResumableUploader mUploader;
+    private final AppendSync mAppendSync;
+    private final MetadataCache mMetadataCache;
+    private final ContentCache mContentCache;
+    private final ChangesFeed mChangesFeed;
+    // Held while the metadata cache is synced, so that only one first sync lists every file.
+    private final Object mSyncLock = new Object();
 
     public DriveServiceHelper(Drive driveService) {
+        this(driveService, new ResumableUploader.MemorySessionStore(), null, null);
+    }
+
+    /**
+     * Creates a helper whose resumable uploads record their progress in {@code sessionStore}, so
+     * that they can be continued after the process is restarted. File metadata is kept in {@code
+     * metadataCache} and file contents in {@code contentCache}; either may be {@code null} to
+     * disable that cache.
+     */
+    public DriveServiceHelper(Drive driveService, ResumableUploader.SessionStore sessionStore,
+            MetadataCache metadataCache, ContentCache contentCache) {
+        this(driveService, sessionStore, metadataCache, contentCache,
+                DEFAULT_METADATA_PARALLELISM, DEFAULT_MEDIA_PARALLELISM);
+    }
+
+    /**
+     * Creates a helper which runs up to {@code metadataParallelism} metadata requests and up to
+     * {@code mediaParallelism} content transfers at once. The two kinds of request are queued
+     * separately, so a long download never delays a metadata request.
+     */
+    public DriveServiceHelper(Drive driveService, ResumableUploader.SessionStore sessionStore,
+            MetadataCache metadataCache, ContentCache contentCache, int metadataParallelism,
+            int mediaParallelism) {
+        this(driveService, sessionStore, new AppendSync.MemorySyncStateStore(), metadataCache,
+                contentCache, metadataParallelism, mediaParallelism);
+    }
+
+    /**
+     * Creates a helper like {@link #DriveServiceHelper(Drive, ResumableUploader.SessionStore,
+     * MetadataCache, ContentCache, int, int)} which records the state of files synced with {@link
+     * #syncAppendedFile} in {@code syncStateStore}.
+     */
+    public DriveServiceHelper(Drive driveService, ResumableUploader.SessionStore sessionStore,
+            AppendSync.SyncStateStore syncStateStore, MetadataCache metadataCache,
+            ContentCache contentCache, int metadataParallelism, int mediaParallelism) {
         mDriveService = driveService;
+        mUploader = new ResumableUploader(driveService, sessionStore);
+        mAppendSync = new AppendSync(driveService, mUploader, syncStateStore);
+        mMetadataCache = metadataCache;
+        mContentCache = contentCache;
+        if (metadataCache != null) {
+            // The cache stores the feed's page token in the same database as the metadata.
+            mChangesFeed = new ChangesFeed(driveService, metadataCache);
+            mChangesFeed.addChangeListener(metadataCache);
+        } else {
+            mChangesFeed = new ChangesFeed(driveService, new ChangesFeed.MemoryPageTokenStore());
+        }
+        mMetadataLane = new ExecutionLane("drive-metadata", metadataParallelism);
+        mMediaLane = new ExecutionLane("drive-media", mediaParallelism);
+    }
+
+    /**
+     * Stops the changes feed's polling thread and stops both lanes from accepting new requests.
+     * Requests already queued still run. The helper cannot be used afterwards.
+     */
+    public void close() {
+        mChangesFeed.close();
+        mMetadataLane.shutdown();
+        mMediaLane.shutdown();
+    }
+
+    /**
+     * Returns the lane running metadata requests, whose queue and latency counters can be
+     * inspected.
+     */
+    public ExecutionLane getMetadataLane() {
+        return mMetadataLane;
+    }
+
+    /**
+     * Returns the lane running content downloads and uploads, whose queue and latency counters
+     * can be inspected.
+     */
+    public ExecutionLane getMediaLane() {
+        return mMediaLane;
     }
 
     /**
      * Creates a text file in the user's My Drive folder and returns its file ID.
      */
     public Task<String> createFile() {
-        return Tasks.call(mExecutor, () -> {
+        return createFile(FieldMask.ID).continueWith(task -> task.getResult().getId());
+    }
+
+    /**
+     * Creates a text file in the user's My Drive folder and returns the {@code fields} of the
+     * created file.
+     */
+    public Task<File> createFile(FieldMask fields) {
+        return Tasks.call(mMetadataLane, () -> {
                 File metadata = new File()
                         .setParents(Collections.singletonList("root"))
                         .setMimeType("text/plain")
                         .setName("Untitled file");
 
-                File googleFile = mDriveService.files().create(metadata).execute();
+                File googleFile = mDriveService.files().create(metadata)
+                        .setFields(fields.forFile())
+                        .execute();
                 if (googleFile == null) {
                     throw new IOException("Null result when requesting file creation.");
                 }
 
-                return googleFile.getId();
+                return googleFile;
             });
     }
 
+    /**
+     * Returns the {@code fields} of the metadata of the file identified by {@code fileId}.
+     */
+    public Task<File> getMetadata(String fileId, FieldMask fields) {
+        return Tasks.call(mMetadataLane, () ->
+                mDriveService.files().get(fileId).setFields(fields.forFile()).execute());
+    }
+
     /**
      * Opens the file identified by {@code fileId} and returns a {@link Pair} of its name and
      * contents.
+     *
+     * <p>The contents are decoded as they are downloaded, using the charset given by a byte order
+     * mark or the file's MIME type, into a buffer which grows as needed. Unless the content cache
+     * needs the file's version first, the metadata is fetched while the contents download.</p>
      */
-    public Task<Pair<String, String>> readFile(String fileId) {
-        return Tasks.call(mExecutor, () -> {
-                // Retrieve the metadata as a File object.
-                File metadata = mDriveService.files().get(fileId).execute();
-                String name = metadata.getName();
+    public Task<Pair<String, CharSequence>> readFile(String fileId) {
+        return Tasks.call(mMediaLane, () -> {
+                if (mContentCache != null) {
+                    File metadata = getDownloadMetadata(fileId);
+                    TextDecoder decoder = new TextDecoder(metadata.getMimeType());
+                    downloadFile(metadata, decoder);
+                    return Pair.create(metadata.getName(), decoder.getText());
+                }
 
-                // Stream the file contents to a String.
-                try (InputStream is = mDriveService.files().get(fileId).executeMediaAsInputStream();
-                     BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
-                    StringBuilder stringBuilder = new StringBuilder();
-                    String line;
+                // The MIME type is only needed once the first bytes arrive.
+                Task<File> metadataTask = fetchDownloadMetadata(fileId);
+                TextDecoder decoder = new TextDecoder(() -> await(metadataTask).getMimeType());
+                downloadMedia(fileId, decoder);
+                return Pair.create(await(metadataTask).getName(), decoder.getText());
+            });
+    }
 
-                    while ((line = reader.readLine()) != null) {
-                        stringBuilder.append(line);
-                    }
-                    String contents = stringBuilder.toString();
+    /**
+     * Streams the contents of the file identified by {@code fileId} into {@code sink} and returns
+     * the file's name.
+     *
+     * <p>The contents are downloaded in ranges of {@link #DOWNLOAD_CHUNK_SIZE} bytes, so memory use
+     * stays constant regardless of the file's size. The caller owns {@code sink} and is
+     * responsible for closing it.</p>
+     */
+    public Task<String> readFile(String fileId, OutputStream sink) {
+        return Tasks.call(mMediaLane, () -> {
+                if (mContentCache != null) {
+                    File metadata = getDownloadMetadata(fileId);
+                    downloadFile(metadata, sink);
+                    return metadata.getName();
+                }
+
+                Task<File> metadataTask = fetchDownloadMetadata(fileId);
+                downloadMedia(fileId, sink);
+                return await(metadataTask).getName();
+            });
+    }
 
-                    return Pair.create(name, contents);
+    /**
+     * Starts fetching the metadata of the file identified by {@code fileId} on the metadata lane,
+     * so that it arrives while the file's contents are downloaded on the media lane.
+     */
+    private Task<File> fetchDownloadMetadata(String fileId) {
+        return Tasks.call(mMetadataLane, () -> getDownloadMetadata(fileId));
+    }
+
+    /**
+     * Waits on the calling thread for {@code task} to complete and returns its metadata.
+     */
+    private static File await(Task<File> task) throws IOException {
+        try {
+            return Tasks.await(task);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to fetch the file's metadata.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching the file's metadata.");
+        }
+    }
+
+    /**
+     * Returns the metadata needed to download the file identified by {@code fileId}.
+     */
+    private File getDownloadMetadata(String fileId) throws IOException {
+        // Once the metadata cache has synced, the changes feed keeps it current to within one
+        // poll, which is close enough for the name and MIME type. Before the first sync it holds
+        // nothing useful, and the content cache always needs the file's exact version.
+        File metadata = mContentCache == null && mMetadataCache != null
+                && mMetadataCache.getPageToken() != null
+                ? mMetadataCache.get(fileId)
+                : null;
+        if (metadata == null) {
+            metadata = mDriveService.files().get(fileId)
+                    .setFields(FieldMask.CONTENT_VERSION.forFile())
+                    .execute();
+        }
+        return metadata;
+    }
+
+    /**
+     * Copies the contents of the file described by {@code metadata} into {@code sink}.
+     *
+     * <p>If the contents of the file's current version are in the content cache, they are copied
+     * from disk instead of being downloaded.</p>
+     */
+    private void downloadFile(File metadata, OutputStream sink) throws IOException {
+        String version = mContentCache != null ? ContentCache.versionOf(metadata) : null;
+        if (version != null) {
+            try (InputStream in = fetchToCache(metadata.getId(), version)) {
+                copy(in, sink);
+            }
+        } else {
+            downloadMedia(metadata.getId(), sink);
+        }
+    }
+
+    /**
+     * Returns the contents of the file identified by {@code fileId} memory-mapped from the content
+     * cache, downloading them only if the cached copy is missing or out of date.
+     */
+    public Task<MappedByteBuffer> readFileToCache(String fileId) {
+        if (mContentCache == null) {
+            throw new IllegalStateException("No content cache was provided.");
+        }
+        return Tasks.call(mMediaLane, () -> {
+                File metadata = mDriveService.files().get(fileId)
+                        .setFields(FieldMask.CONTENT_VERSION.forFile())
+                        .execute();
+                String version = ContentCache.versionOf(metadata);
+                if (version == null) {
+                    throw new IOException("File " + fileId + " has no version to cache.");
                 }
+                return ContentCache.map(fetchToCache(fileId, version));
             });
     }
 
+    /**
+     * Opens the cached contents of version {@code version} of the file identified by {@code
+     * fileId}, downloading them into the content cache first if needed.
+     */
+    private FileInputStream fetchToCache(String fileId, String version) throws IOException {
+        FileInputStream cached = mContentCache.open(fileId, version);
+        if (cached == null) {
+            cached = mContentCache.put(fileId, version, out -> downloadMedia(fileId, out));
+        }
+        return cached;
+    }
+
+    /**
+     * Downloads the contents of the file identified by {@code fileId} into {@code sink} in ranges
+     * of {@link #DOWNLOAD_CHUNK_SIZE} bytes.
+     */
+    private void downloadMedia(String fileId, OutputStream sink) throws IOException {
+        Drive.Files.Get request = mDriveService.files().get(fileId);
+        request.getMediaHttpDownloader()
+                .setDirectDownloadEnabled(false)
+                .setChunkSize(DOWNLOAD_CHUNK_SIZE);
+        request.executeMediaAndDownloadTo(sink);
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+    }
+
     /**
      * Updates the file identified by {@code fileId} with the given {@code name} and {@code
      * content}.
      */
     public Task<Void> saveFile(String fileId, String name, String content) {
-        return Tasks.call(mExecutor, () -> {
+        return Tasks.call(mMediaLane, () -> {
                 // Create a File containing any metadata changes.
                 File metadata = new File().setName(name);
 
@@ -110,6 +365,45 @@ public class DriveServiceHelper {
             });
     }
 
+    /**
+     * Updates the file identified by {@code fileId} with the given {@code name} and the contents
+     * of {@code content} using a resumable upload.
+     *
+     * <p>The contents are streamed from {@code content} in chunks of {@code chunkSize} bytes,
+     * which must be a multiple of {@link ResumableUploader#CHUNK_GRANULARITY}. If a previous upload
+     * of the same file was interrupted, it resumes from the last chunk the server
+     * acknowledged.</p>
+     */
+    public Task<Void> saveFile(String fileId, String name, String mimeType, FileChannel content,
+            int chunkSize) {
+        return Tasks.call(mMediaLane, () -> {
+                File metadata = new File().setName(name);
+                mUploader.upload(fileId, metadata, mimeType, content, chunkSize);
+                return null;
+            });
+    }
+
+    /**
+     * Updates the file identified by {@code fileId} with the contents of {@code content}, a local
+     * copy which is only ever appended to, uploading nothing if Drive already holds them.
+     *
+     * <p>If the file was changed in Drive since it was last synced, the task fails rather than
+     * overwriting those changes; see {@link AppendSync#sync}.</p>
+     */
+    public Task<AppendSync.Result> syncAppendedFile(String fileId, String mimeType,
+            FileChannel content, int chunkSize) {
+        return Tasks.call(mMediaLane, () ->
+                mAppendSync.sync(fileId, mimeType, content, chunkSize));
+    }
+
+    /**
+     * Returns the {@link AppendSync} used by {@link #syncAppendedFile}, whose counters can be
+     * inspected.
+     */
+    public AppendSync getAppendSync() {
+        return mAppendSync;
+    }
+
     /**
      * Returns a {@link FileList} containing all the visible files in the user's My Drive.
      *
@@ -119,10 +413,120 @@ public class DriveServiceHelper {
      * Developer's Console</a> and be submitted to Google for verification.</p>
      */
     public Task<FileList> queryFiles() {
-        return Tasks.call(mExecutor, () ->
+        return Tasks.call(mMetadataLane, () ->
                 mDriveService.files().list().setSpaces("drive").execute());
     }
 
+    /**
+     * Returns a {@link FileList} like {@link #queryFiles()}, but containing only the given {@code
+     * fields} of each file.
+     */
+    public Task<FileList> queryFiles(FieldMask fields) {
+        return Tasks.call(mMetadataLane, () ->
+                mDriveService.files().list()
+                        .setSpaces("drive")
+                        .setFields(fields.forList())
+                        .execute());
+    }
+
+    /**
+     * Returns the files visible to this app as recorded in the metadata cache, without contacting
+     * Drive. If the cache has never been populated, it is synced first.
+     *
+     * <p>At most {@link MetadataCache}'s maximum number of entries are returned; the least
+     * recently read files are evicted beyond that. If this helper has no metadata cache, the files
+     * are listed from Drive.</p>
+     */
+    public Task<List<File>> queryCachedFiles() {
+        return Tasks.call(mMetadataLane, () -> {
+                if (mMetadataCache == null || mMetadataCache.getPageToken() == null) {
+                    return syncMetadata();
+                }
+                return mMetadataCache.getAll();
+            });
+    }
+
+    /**
+     * Brings the metadata cache up to date with Drive and returns the cached files.
+     *
+     * <p>After the first sync, only the changes made since the previous sync are fetched, so the
+     * cost of a sync scales with the number of changed files rather than the total.</p>
+     */
+    public Task<List<File>> syncMetadataCache() {
+        return Tasks.call(mMetadataLane, this::syncMetadata);
+    }
+
+    private List<File> syncMetadata() throws IOException {
+        if (mMetadataCache == null) {
+            return listAllFiles();
+        }
+
+        synchronized (mSyncLock) {
+            if (mMetadataCache.getPageToken() == null) {
+                // Record the feed position before listing so no change made meanwhile is missed.
+                String startPageToken = mDriveService.changes().getStartPageToken()
+                        .execute()
+                        .getStartPageToken();
+                List<File> files = listAllFiles();
+                mMetadataCache.apply(files, Collections.emptyList(), startPageToken);
+            } else {
+                mChangesFeed.catchUp();
+            }
+        }
+        return mMetadataCache.getAll();
+    }
+
+    /**
+     * Returns the {@link ChangesFeed} tracking changes to the files visible to this app. Listeners
+     * added to it are notified of changed files whenever it is polled, including by {@link
+     * #syncMetadataCache()}.
+     */
+    public ChangesFeed getChangesFeed() {
+        return mChangesFeed;
+    }
+
+    /**
+     * Lists every file visible to this app on the calling thread, following page tokens.
+     */
+    private List<File> listAllFiles() throws IOException {
+        List<File> files = new ArrayList<>();
+        String pageToken = null;
+        do {
+            FileList fileList = mDriveService.files().list()
+                    .setSpaces("drive")
+                    .setFields(FieldMask.VERSION.forList())
+                    .setPageSize(1000)
+                    .setPageToken(pageToken)
+                    .execute();
+            if (fileList.getFiles() != null) {
+                files.addAll(fileList.getFiles());
+            }
+            pageToken = fileList.getNextPageToken();
+        } while (pageToken != null);
+        return files;
+    }
+
+    /**
+     * Returns a {@link FileQuery} which lazily iterates over every file visible to this app,
+     * fetching {@code pageSize} files at a time and returning only the given {@code fields} of
+     * each.
+     *
+     * <p>Unlike {@link #queryFiles()}, which returns only the first page of results, the returned
+     * query follows page tokens until every file has been returned or it is closed. It must be
+     * iterated on a background thread.</p>
+     */
+    public FileQuery queryFiles(FieldMask fields, int pageSize) {
+        return new FileQuery(mDriveService, mMetadataLane, fields, pageSize);
+    }
+
+    /**
+     * Returns a new {@link DriveBatch} for grouping many metadata operations into as few HTTP
+     * requests as possible. The batch runs on the metadata lane when executed.
+     */
+    public DriveBatch newBatch() {
+        return new DriveBatch(mDriveService, mMetadataLane);
+    }
+
     /**
      * Returns an {@link Intent} for opening the Storage Access Framework file picker.
      */
@@ -138,9 +542,9 @@ public class DriveServiceHelper {
      * Opens the file at the {@code uri} returned by a Storage Access Framework {@link Intent}
      * created by {@link #createFilePickerIntent()} using the given {@code contentResolver}.
      */
-    public Task<Pair<String, String>> openFileUsingStorageAccessFramework(
+    public Task<Pair<String, CharSequence>> openFileUsingStorageAccessFramework(
             ContentResolver contentResolver, Uri uri) {
-        return Tasks.call(mExecutor, () -> {
+        return Tasks.call(mMediaLane, () -> {
                 // Retrieve the document's display name from its metadata.
                 String name;
                 try (Cursor cursor = contentResolver.query(uri, null, null, null, null)) {
@@ -152,19 +556,13 @@ public class DriveServiceHelper {
                     }
                 }
 
-                // Read the document's contents as a String.
-                String content;
-                try (InputStream is = contentResolver.openInputStream(uri);
-                     BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
-                    StringBuilder stringBuilder = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        stringBuilder.append(line);
-                    }
-                    content = stringBuilder.toString();
+                // Decode the document's contents using its declared charset or byte order mark.
+                TextDecoder decoder = new TextDecoder(contentResolver.getType(uri));
+                try (InputStream is = contentResolver.openInputStream(uri)) {
+                    copy(is, decoder);
                 }
 
-                return Pair.create(name, content);
+                return Pair.create(name, decoder.getText());
             });
     }
 }
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.driveapimigration;
+
+import android.os.SystemClock;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link Executor} with a fixed number of worker threads which records how deep its queue is
+ * and how long tasks wait and run.
+ *
+ * <p>{@link DriveServiceHelper} keeps separate lanes for metadata and media requests, so that a
+ * slow download cannot delay a small metadata request queued behind it.</p>
+ */
+public class ExecutionLane implements Executor {
+    private final String mName;
+    private final ThreadPoolExecutor mExecutor;
+
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicLong mCompletedCount = new AtomicLong();
+    private final AtomicLong mTotalWaitMillis = new AtomicLong();
+    private final AtomicLong mMaxWaitMillis = new AtomicLong();
+    private final AtomicLong mTotalRunMillis = new AtomicLong();
+    private final AtomicLong mMaxRunMillis = new AtomicLong();
+
+    public ExecutionLane(String name, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1.");
+        }
+        mName = name;
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable ->
+                new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+        mExecutor = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), threadFactory);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        long enqueuedAt = SystemClock.elapsedRealtime();
+        updateMax(mMaxQueueDepth, mQueueDepth.incrementAndGet());
+        mExecutor.execute(() -> {
+            long startedAt = SystemClock.elapsedRealtime();
+            mQueueDepth.decrementAndGet();
+            try {
+                command.run();
+            } finally {
+                long waitMillis = startedAt - enqueuedAt;
+                long runMillis = SystemClock.elapsedRealtime() - startedAt;
+                mTotalWaitMillis.addAndGet(waitMillis);
+                updateMax(mMaxWaitMillis, waitMillis);
+                mTotalRunMillis.addAndGet(runMillis);
+                updateMax(mMaxRunMillis, runMillis);
+                mCompletedCount.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Returns the name of this lane.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns the number of tasks waiting for a worker thread.
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * Returns the largest number of tasks that have waited for a worker thread at once.
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /**
+     * Returns the number of tasks that have finished running.
+     */
+    public long getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    /**
+     * Returns the mean time in milliseconds a finished task waited in the queue.
+     */
+    public long getAverageWaitMillis() {
+        long count = mCompletedCount.get();
+        return count == 0 ? 0 : mTotalWaitMillis.get() / count;
+    }
+
+    /**
+     * Returns the longest time in milliseconds a finished task waited in the queue.
+     */
+    public long getMaxWaitMillis() {
+        return mMaxWaitMillis.get();
+    }
+
+    /**
+     * Returns the mean time in milliseconds a finished task spent running.
+     */
+    public long getAverageRunMillis() {
+        long count = mCompletedCount.get();
+        return count == 0 ? 0 : mTotalRunMillis.get() / count;
+    }
+
+    /**
+     * Returns the longest time in milliseconds a finished task spent running.
+     */
+    public long getMaxRunMillis() {
+        return mMaxRunMillis.get();
+    }
+
+    /**
+     * Stops accepting new tasks. Tasks already queued still run.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return mName + "{queued=" + getQueueDepth()
+                + ", maxQueued=" + getMaxQueueDepth()
+                + ", completed=" + getCompletedCount()
+                + ", avgWaitMs=" + getAverageWaitMillis()
+                + ", maxWaitMs=" + getMaxWaitMillis()
+                + ", avgRunMs=" + getAverageRunMillis()
+                + ", maxRunMs=" + getMaxRunMillis() + "}";
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry until the maximum is at least value.
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry until the maximum is at least value.
+        }
+    }
+}
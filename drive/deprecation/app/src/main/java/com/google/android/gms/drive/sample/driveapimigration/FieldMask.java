@@ -0,0 +1,92 @@
+/**
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.driveapimigration;
+
+import android.text.TextUtils;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The set of {@link com.google.api.services.drive.model.File} fields a request should return.
+ *
+ * <p>Asking for only the fields that are read keeps the server from serializing, and the client
+ * from parsing, the rest of the resource. Masks are interned, and the {@code fields} parameter for
+ * both single-file and list requests is built once when the mask is created.</p>
+ */
+public final class FieldMask {
+    private static final ConcurrentMap<String, FieldMask> sMasks = new ConcurrentHashMap<>();
+
+    /** Only the file's ID. */
+    public static final FieldMask ID = of("id");
+
+    /** The file's ID and name. */
+    public static final FieldMask ID_AND_NAME = of("id", "name");
+
+    /** The fields needed to download and decode a file and tell whether its contents changed. */
+    public static final FieldMask CONTENT_VERSION =
+            of("id", "name", "mimeType", "size", "md5Checksum", "headRevisionId");
+
+    /** The fields needed to tell whether a file has changed. */
+    public static final FieldMask VERSION =
+            of("id", "name", "mimeType", "modifiedTime", "md5Checksum", "version");
+
+    private final String mFileFields;
+    private final String mListFields;
+
+    private FieldMask(String fileFields) {
+        mFileFields = fileFields;
+        mListFields = "nextPageToken, files(" + fileFields + ")";
+    }
+
+    /**
+     * Returns the mask selecting the given {@link com.google.api.services.drive.model.File}
+     * fields, e.g. {@code of("id", "name", "modifiedTime")}.
+     */
+    public static FieldMask of(String... fields) {
+        if (fields.length == 0) {
+            throw new IllegalArgumentException("A field mask must name at least one field.");
+        }
+        String fileFields = TextUtils.join(",", fields);
+        FieldMask mask = sMasks.get(fileFields);
+        if (mask == null) {
+            FieldMask newMask = new FieldMask(fileFields);
+            mask = sMasks.putIfAbsent(fileFields, newMask);
+            if (mask == null) {
+                mask = newMask;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the {@code fields} parameter for requests returning a single file.
+     */
+    public String forFile() {
+        return mFileFields;
+    }
+
+    /**
+     * Returns the {@code fields} parameter for {@code files.list} requests.
+     */
+    public String forList() {
+        return mListFields;
+    }
+
+    @Override
+    public String toString() {
+        return mFileFields;
+    }
+}
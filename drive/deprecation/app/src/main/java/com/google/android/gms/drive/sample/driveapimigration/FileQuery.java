@@ -0,0 +1,118 @@
+/**
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.driveapimigration;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * A lazy {@link Iterator} over the files matched by a Drive {@code files.list} request.
+ *
+ * <p>Pages are requested only as the iterator advances. While the files of one page are being
+ * consumed, the next page is already being fetched on the given {@link Executor}, so iterating
+ * rarely waits on the network and the cost of a listing scales with the pages actually read.
+ * {@link #close()} stops any further pages from being requested.</p>
+ *
+ * <p>{@link #hasNext()} blocks while a page is being fetched, so it must not be called on the main
+ * thread.</p>
+ */
+public class FileQuery implements Iterator<File>, Closeable {
+    private final Drive mDriveService;
+    private final Executor mExecutor;
+    private final String mFields;
+    private final int mPageSize;
+
+    private Task<FileList> mNextPage;
+    private Iterator<File> mCurrentPage = Collections.emptyIterator();
+    private volatile boolean mClosed;
+
+    /**
+     * Starts a query for the files in the user's My Drive which are visible to this app.
+     *
+     * @param fields   Fields to return for each file.
+     * @param pageSize Maximum number of files to return per page.
+     */
+    FileQuery(Drive driveService, Executor executor, FieldMask fields, int pageSize) {
+        mDriveService = driveService;
+        mExecutor = executor;
+        mFields = fields.forList();
+        mPageSize = pageSize;
+        mNextPage = fetchPage(null);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!mCurrentPage.hasNext()) {
+            if (mClosed || mNextPage == null) {
+                return false;
+            }
+
+            FileList page;
+            try {
+                page = Tasks.await(mNextPage);
+            } catch (ExecutionException | InterruptedException e) {
+                mNextPage = null;
+                throw new RuntimeException("Unable to fetch the next page of files.", e);
+            }
+
+            // Start fetching the following page while this one is consumed.
+            String pageToken = page.getNextPageToken();
+            mNextPage = pageToken != null && !mClosed ? fetchPage(pageToken) : null;
+            if (page.getFiles() != null) {
+                mCurrentPage = page.getFiles().iterator();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public File next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return mCurrentPage.next();
+    }
+
+    /**
+     * Stops the query. No further pages are requested, although a page already in flight is
+     * allowed to finish.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        mNextPage = null;
+        mCurrentPage = Collections.emptyIterator();
+    }
+
+    private Task<FileList> fetchPage(String pageToken) {
+        return Tasks.call(mExecutor, () ->
+                mDriveService.files().list()
+                        .setSpaces("drive")
+                        .setFields(mFields)
+                        .setPageSize(mPageSize)
+                        .setPageToken(pageToken)
+                        .execute());
+    }
+}
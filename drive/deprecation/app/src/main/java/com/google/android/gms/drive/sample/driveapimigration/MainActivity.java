@@ -35,6 +35,7 @@ import android.util.Log;
 import android.widget.EditText;
 
 import java.util.Collections;
+import java.util.List;
 
 /**
  * The main {@link Activity} for the Drive API migration sample app.
@@ -45,6 +46,8 @@ public class MainActivity extends AppCompatActivity {
     private static final int REQUEST_CODE_SIGN_IN = 1;
     private static final int REQUEST_CODE_OPEN_DOCUMENT = 2;
 
+    private static final long CONTENT_CACHE_BYTES = 64 * 1024 * 1024;
+
     private DriveServiceHelper mDriveServiceHelper;
     private String mOpenFileId;
 
@@ -71,6 +74,14 @@ public class MainActivity extends AppCompatActivity {
         requestSignIn();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mDriveServiceHelper != null) {
+            mDriveServiceHelper.close();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent resultData) {
         switch (requestCode) {
@@ -134,7 +145,14 @@ public class MainActivity extends AppCompatActivity {
 
                         // The DriveServiceHelper encapsulates all REST API and SAF functionality.
                         // Its instantiation is required before handling any onClick actions.
-                        mDriveServiceHelper = new DriveServiceHelper(googleDriveService);
+                        // Resumable upload sessions, file metadata and file contents are
+                        // persisted so that they survive process death.
+                        mDriveServiceHelper = new DriveServiceHelper(googleDriveService,
+                                new ResumableUploader.PreferencesSessionStore(
+                                        getPreferences(MODE_PRIVATE)),
+                                new MetadataCache(this),
+                                new ContentCache(new java.io.File(getCacheDir(), "drive"),
+                                        CONTENT_CACHE_BYTES));
                     })
                 .addOnFailureListener(exception -> Log.e(TAG, "Unable to sign in.", exception));
     }
@@ -164,7 +182,7 @@ public class MainActivity extends AppCompatActivity {
             mDriveServiceHelper.openFileUsingStorageAccessFramework(getContentResolver(), uri)
                     .addOnSuccessListener(nameAndContent -> {
                             String name = nameAndContent.first;
-                            String content = nameAndContent.second;
+                            CharSequence content = nameAndContent.second;
 
                             mFileTitleEditText.setText(name);
                             mDocContentEditText.setText(content);
@@ -201,7 +219,7 @@ public class MainActivity extends AppCompatActivity {
             mDriveServiceHelper.readFile(fileId)
                     .addOnSuccessListener(nameAndContent -> {
                             String name = nameAndContent.first;
-                            String content = nameAndContent.second;
+                            CharSequence content = nameAndContent.second;
 
                             mFileTitleEditText.setText(name);
                             mDocContentEditText.setText(content);
@@ -230,29 +248,37 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * Queries the Drive REST API for files visible to this app and lists them in the content view.
+     * Lists the files visible to this app in the content view, showing the cached listing at once
+     * and then refreshing it with any changes made in Drive.
      */
     private void query() {
         if (mDriveServiceHelper != null) {
             Log.d(TAG, "Querying for files.");
 
-            mDriveServiceHelper.queryFiles()
-                .addOnSuccessListener(fileList -> {
-                        StringBuilder builder = new StringBuilder();
-                        for (File file : fileList.getFiles()) {
-                            builder.append(file.getName()).append("\n");
-                        }
-                        String fileNames = builder.toString();
-
-                        mFileTitleEditText.setText("File List");
-                        mDocContentEditText.setText(fileNames);
-
-                        setReadOnlyMode();
-                    })
+            mDriveServiceHelper.queryCachedFiles()
+                .addOnSuccessListener(this::showFileList)
+                .continueWithTask(task -> mDriveServiceHelper.syncMetadataCache())
+                .addOnSuccessListener(this::showFileList)
                 .addOnFailureListener(exception -> Log.e(TAG, "Unable to query files.", exception));
         }
     }
 
+    /**
+     * Shows the names of {@code files} in the content view.
+     */
+    private void showFileList(List<File> files) {
+        StringBuilder builder = new StringBuilder();
+        for (File file : files) {
+            builder.append(file.getName()).append("\n");
+        }
+        String fileNames = builder.toString();
+
+        mFileTitleEditText.setText("File List");
+        mDocContentEditText.setText(fileNames);
+
+        setReadOnlyMode();
+    }
+
     /**
      * Updates the UI to read-only mode.
      */
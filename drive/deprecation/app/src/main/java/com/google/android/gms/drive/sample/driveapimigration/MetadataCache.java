@@ -0,0 +1,248 @@
+/**
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.driveapimigration;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An on-device SQLite store of Drive file metadata, keyed by file ID.
+ *
+ * <p>For each file the cache holds the fields in {@link FieldMask#VERSION}. It is kept up to date
+ * by registering it as a listener of a {@link ChangesFeed}, which also stores its page token here.
+ * The feed saves the token only after the listeners have applied the changes, in a separate
+ * write, so if the process dies in between, the same changes are delivered again by the next
+ * catch-up. Applying them is idempotent, since each change carries the file's latest state, so
+ * the cache is never behind the saved token. Once the number of cached files exceeds the
+ * configured limit, the least recently read entries are evicted.</p>
+ */
+public class MetadataCache extends SQLiteOpenHelper
+        implements ChangesFeed.ChangeListener, ChangesFeed.PageTokenStore {
+    private static final String DATABASE_NAME = "drive_metadata.db";
+    private static final int DATABASE_VERSION = 1;
+
+    /**
+     * The default maximum number of files kept in the cache.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private static final String TABLE_FILES = "files";
+    private static final String TABLE_STATE = "state";
+
+    private static final String COLUMN_ID = "id";
+    private static final String COLUMN_NAME = "name";
+    private static final String COLUMN_MIME_TYPE = "mime_type";
+    private static final String COLUMN_MODIFIED_TIME = "modified_time";
+    private static final String COLUMN_MD5_CHECKSUM = "md5_checksum";
+    private static final String COLUMN_VERSION = "version";
+    private static final String COLUMN_LAST_ACCESS = "last_access";
+    private static final String COLUMN_KEY = "key";
+    private static final String COLUMN_VALUE = "value";
+
+    private static final String KEY_PAGE_TOKEN = "page_token";
+
+    private static final String[] FILE_COLUMNS = {
+            COLUMN_ID, COLUMN_NAME, COLUMN_MIME_TYPE, COLUMN_MODIFIED_TIME, COLUMN_MD5_CHECKSUM,
+            COLUMN_VERSION
+    };
+
+    private final int mMaxEntries;
+
+    public MetadataCache(Context context) {
+        this(context, DEFAULT_MAX_ENTRIES);
+    }
+
+    public MetadataCache(Context context, int maxEntries) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mMaxEntries = maxEntries;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_FILES + " ("
+                + COLUMN_ID + " TEXT PRIMARY KEY, "
+                + COLUMN_NAME + " TEXT, "
+                + COLUMN_MIME_TYPE + " TEXT, "
+                + COLUMN_MODIFIED_TIME + " INTEGER, "
+                + COLUMN_MD5_CHECKSUM + " TEXT, "
+                + COLUMN_VERSION + " INTEGER, "
+                + COLUMN_LAST_ACCESS + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX files_last_access ON " + TABLE_FILES
+                + " (" + COLUMN_LAST_ACCESS + ")");
+        db.execSQL("CREATE TABLE " + TABLE_STATE + " ("
+                + COLUMN_KEY + " TEXT PRIMARY KEY, "
+                + COLUMN_VALUE + " TEXT)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The cache can always be rebuilt from Drive, so simply start over.
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_FILES);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_STATE);
+        onCreate(db);
+    }
+
+    /**
+     * Returns the cached metadata of the file identified by {@code fileId}, or {@code null} if it
+     * is not cached.
+     */
+    public File get(String fileId) {
+        SQLiteDatabase db = getWritableDatabase();
+        File file = null;
+        try (Cursor cursor = db.query(TABLE_FILES, FILE_COLUMNS, COLUMN_ID + " = ?",
+                new String[] {fileId}, null, null, null)) {
+            if (cursor.moveToFirst()) {
+                file = fromCursor(cursor);
+            }
+        }
+        if (file != null) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_LAST_ACCESS, System.currentTimeMillis());
+            db.update(TABLE_FILES, values, COLUMN_ID + " = ?", new String[] {fileId});
+        }
+        return file;
+    }
+
+    /**
+     * Returns the metadata of every cached file, ordered by name.
+     */
+    public List<File> getAll() {
+        List<File> files = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(TABLE_FILES, FILE_COLUMNS, null, null,
+                null, null, COLUMN_NAME)) {
+            while (cursor.moveToNext()) {
+                files.add(fromCursor(cursor));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Stores {@code files} and removes the files identified by {@code removedIds} in a single
+     * transaction, then records {@code pageToken}, if not {@code null}, as the changes feed
+     * position the cache is now current with.
+     */
+    public void apply(List<File> files, List<String> removedIds, String pageToken) {
+        SQLiteDatabase db = getWritableDatabase();
+        long now = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            for (File file : files) {
+                db.insertWithOnConflict(TABLE_FILES, null, toValues(file, now),
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            for (String fileId : removedIds) {
+                db.delete(TABLE_FILES, COLUMN_ID + " = ?", new String[] {fileId});
+            }
+            if (pageToken != null) {
+                setPageToken(pageToken);
+            }
+            evict(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public void onFilesChanged(Map<String, File> changes) {
+        List<File> changed = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, File> change : changes.entrySet()) {
+            if (change.getValue() != null) {
+                changed.add(change.getValue());
+            } else {
+                removed.add(change.getKey());
+            }
+        }
+        apply(changed, removed, null);
+    }
+
+    /**
+     * Removes every cached file and the saved page token.
+     */
+    public void clear() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.delete(TABLE_FILES, null, null);
+        db.delete(TABLE_STATE, null, null);
+    }
+
+    /**
+     * Returns the changes feed page token the cache is current with, or {@code null} if it has
+     * never been populated.
+     */
+    @Override
+    public String getPageToken() {
+        try (Cursor cursor = getReadableDatabase().query(TABLE_STATE, new String[] {COLUMN_VALUE},
+                COLUMN_KEY + " = ?", new String[] {KEY_PAGE_TOKEN}, null, null, null)) {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
+    }
+
+    @Override
+    public void setPageToken(String pageToken) {
+        ContentValues state = new ContentValues();
+        state.put(COLUMN_KEY, KEY_PAGE_TOKEN);
+        state.put(COLUMN_VALUE, pageToken);
+        getWritableDatabase().insertWithOnConflict(TABLE_STATE, null, state,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Removes the least recently read files until no more than the maximum remain.
+     */
+    private void evict(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + TABLE_FILES + " WHERE " + COLUMN_ID + " IN (SELECT "
+                + COLUMN_ID + " FROM " + TABLE_FILES + " ORDER BY " + COLUMN_LAST_ACCESS
+                + " DESC LIMIT -1 OFFSET " + mMaxEntries + ")");
+    }
+
+    private static ContentValues toValues(File file, long lastAccess) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_ID, file.getId());
+        values.put(COLUMN_NAME, file.getName());
+        values.put(COLUMN_MIME_TYPE, file.getMimeType());
+        values.put(COLUMN_MODIFIED_TIME,
+                file.getModifiedTime() != null ? file.getModifiedTime().getValue() : null);
+        values.put(COLUMN_MD5_CHECKSUM, file.getMd5Checksum());
+        values.put(COLUMN_VERSION, file.getVersion());
+        values.put(COLUMN_LAST_ACCESS, lastAccess);
+        return values;
+    }
+
+    private static File fromCursor(Cursor cursor) {
+        File file = new File()
+                .setId(cursor.getString(0))
+                .setName(cursor.getString(1))
+                .setMimeType(cursor.getString(2))
+                .setMd5Checksum(cursor.getString(4));
+        if (!cursor.isNull(3)) {
+            file.setModifiedTime(new DateTime(cursor.getLong(3)));
+        }
+        if (!cursor.isNull(5)) {
+            file.setVersion(cursor.getLong(5));
+        }
+        return file;
+    }
+}
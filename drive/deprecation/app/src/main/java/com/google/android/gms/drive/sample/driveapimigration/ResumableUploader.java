@@ -0,0 +1,415 @@
+/**
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.driveapimigration;
+
+import android.content.SharedPreferences;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpMethods;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.BackOffUtils;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.Sleeper;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Uploads file contents to Drive using the resumable upload protocol, sending the contents in
+ * fixed-size chunks read directly from a {@link FileChannel}.
+ *
+ * <p>The session URI of an in-progress upload is kept in a {@link SessionStore}, so an upload
+ * interrupted by a network failure or by process death continues from the last byte acknowledged
+ * by the server rather than starting over. The session is stored along with the length and MD5
+ * checksum of the contents, and is only resumed for the same contents.</p>
+ */
+public class ResumableUploader {
+    /**
+     * Chunk sizes must be a multiple of this value, as required by the Drive API.
+     */
+    public static final int CHUNK_GRANULARITY = 256 * 1024;
+
+    private static final int MAX_CONSECUTIVE_FAILURES = 5;
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+    private static final int STATUS_RESUME_INCOMPLETE = 308;
+
+    private final Drive mDriveService;
+    private final SessionStore mSessionStore;
+
+    /**
+     * Persists the session URI of in-progress uploads, and the fingerprint of the contents being
+     * uploaded, keyed by Drive file ID.
+     */
+    public interface SessionStore {
+        String getSessionUri(String fileId);
+
+        String getFingerprint(String fileId);
+
+        void putSessionUri(String fileId, String sessionUri, String fingerprint);
+
+        void removeSessionUri(String fileId);
+    }
+
+    /**
+     * A {@link SessionStore} which only lives as long as the process.
+     */
+    public static class MemorySessionStore implements SessionStore {
+        private final Map<String, String> mSessions = new HashMap<>();
+        private final Map<String, String> mFingerprints = new HashMap<>();
+
+        @Override
+        public synchronized String getSessionUri(String fileId) {
+            return mSessions.get(fileId);
+        }
+
+        @Override
+        public synchronized String getFingerprint(String fileId) {
+            return mFingerprints.get(fileId);
+        }
+
+        @Override
+        public synchronized void putSessionUri(String fileId, String sessionUri,
+                String fingerprint) {
+            mSessions.put(fileId, sessionUri);
+            mFingerprints.put(fileId, fingerprint);
+        }
+
+        @Override
+        public synchronized void removeSessionUri(String fileId) {
+            mSessions.remove(fileId);
+            mFingerprints.remove(fileId);
+        }
+    }
+
+    /**
+     * A {@link SessionStore} backed by {@link SharedPreferences}, which survives process death.
+     */
+    public static class PreferencesSessionStore implements SessionStore {
+        private static final String KEY_PREFIX = "upload_session_";
+        private static final String FINGERPRINT_PREFIX = "upload_fingerprint_";
+
+        private final SharedPreferences mPreferences;
+
+        public PreferencesSessionStore(SharedPreferences preferences) {
+            mPreferences = preferences;
+        }
+
+        @Override
+        public String getSessionUri(String fileId) {
+            return mPreferences.getString(KEY_PREFIX + fileId, null);
+        }
+
+        @Override
+        public String getFingerprint(String fileId) {
+            return mPreferences.getString(FINGERPRINT_PREFIX + fileId, null);
+        }
+
+        @Override
+        public void putSessionUri(String fileId, String sessionUri, String fingerprint) {
+            mPreferences.edit()
+                    .putString(KEY_PREFIX + fileId, sessionUri)
+                    .putString(FINGERPRINT_PREFIX + fileId, fingerprint)
+                    .apply();
+        }
+
+        @Override
+        public void removeSessionUri(String fileId) {
+            mPreferences.edit()
+                    .remove(KEY_PREFIX + fileId)
+                    .remove(FINGERPRINT_PREFIX + fileId)
+                    .apply();
+        }
+    }
+
+    public ResumableUploader(Drive driveService, SessionStore sessionStore) {
+        mDriveService = driveService;
+        mSessionStore = sessionStore;
+    }
+
+    /**
+     * Replaces the contents of the file identified by {@code fileId} with the bytes of {@code
+     * source}, applying any changes in {@code metadata}, and returns the updated file.
+     *
+     * <p>If a session for {@code fileId} was left unfinished by an earlier call with the same
+     * contents, the upload continues from the offset the server has already received. The
+     * contents are read once up front to compute their checksum, which is compared with the one
+     * stored with the session.</p>
+     */
+    public File upload(String fileId, File metadata, String mimeType, FileChannel source,
+            int chunkSize) throws IOException {
+        return upload(fileId, metadata, mimeType, source, chunkSize,
+                checksumOf(source, source.size()));
+    }
+
+    /**
+     * Uploads like {@link #upload(String, File, String, FileChannel, int)}, for a caller which
+     * already knows the {@link #checksumOf checksum} of {@code source}.
+     */
+    File upload(String fileId, File metadata, String mimeType, FileChannel source, int chunkSize,
+            String checksum) throws IOException {
+        if (chunkSize <= 0 || chunkSize % CHUNK_GRANULARITY != 0) {
+            throw new IllegalArgumentException(
+                    "Chunk size must be a positive multiple of " + CHUNK_GRANULARITY);
+        }
+
+        long length = source.size();
+        String fingerprint = length + ":" + checksum;
+        String sessionUri = mSessionStore.getSessionUri(fileId);
+        long offset = -1;
+        if (sessionUri != null && fingerprint.equals(mSessionStore.getFingerprint(fileId))) {
+            offset = queryOffset(sessionUri, length);
+        }
+        if (offset < 0) {
+            // There is no session for these contents, or it has expired on the server; start a
+            // new one. A session left for other contents is abandoned and expires on its own.
+            sessionUri = startSession(fileId, metadata, mimeType, length);
+            mSessionStore.putSessionUri(fileId, sessionUri, fingerprint);
+            offset = 0;
+        }
+
+        byte[] buffer = new byte[(int) Math.min(chunkSize, Math.max(length, 1))];
+        int failures = 0;
+        IOException lastError = null;
+        BackOff backOff = new ExponentialBackOff();
+        while (true) {
+            int count = readChunk(source, offset, buffer);
+            try {
+                HttpResponse response = putChunk(sessionUri, mimeType, buffer, count, offset,
+                        length);
+                try {
+                    if (response.getStatusCode() == STATUS_RESUME_INCOMPLETE) {
+                        offset = parseRangeEnd(response.getHeaders());
+                        failures = 0;
+                        lastError = null;
+                        backOff.reset();
+                        continue;
+                    }
+                    if (response.isSuccessStatusCode()) {
+                        mSessionStore.removeSessionUri(fileId);
+                        return response.parseAs(File.class);
+                    }
+                    if (response.getStatusCode() < 500) {
+                        // Client errors, including an expired session, cannot be retried.
+                        mSessionStore.removeSessionUri(fileId);
+                        throw new HttpResponseException(response);
+                    }
+                } finally {
+                    response.disconnect();
+                }
+            } catch (HttpResponseException e) {
+                throw e;
+            } catch (IOException e) {
+                lastError = e;
+            }
+
+            // A transient failure occurred; ask the server how much it received. Failing to ask
+            // is a transient failure too.
+            while (true) {
+                if (++failures >= MAX_CONSECUTIVE_FAILURES) {
+                    throw lastError != null
+                            ? lastError
+                            : new IOException("Upload of " + fileId + " failed repeatedly.");
+                }
+                waitBeforeRetry(backOff);
+                try {
+                    offset = queryOffset(sessionUri, length);
+                    break;
+                } catch (IOException e) {
+                    lastError = e;
+                }
+            }
+            if (offset < 0) {
+                mSessionStore.removeSessionUri(fileId);
+                throw new IOException("Upload session for " + fileId + " has expired.");
+            }
+        }
+    }
+
+    /**
+     * Initiates a resumable upload session and returns its session URI.
+     */
+    private String startSession(String fileId, File metadata, String mimeType, long length)
+            throws IOException {
+        GenericUrl url = new GenericUrl(
+                mDriveService.getRootUrl() + "upload/drive/v3/files/" + fileId);
+        url.put("uploadType", "resumable");
+
+        HttpContent content = new JsonHttpContent(mDriveService.getJsonFactory(), metadata);
+        HttpRequest request = newRequest(HttpMethods.PATCH, url, content);
+        request.getHeaders()
+                .set("X-Upload-Content-Type", mimeType)
+                .set("X-Upload-Content-Length", length);
+
+        HttpResponse response = request.execute();
+        try {
+            String location = response.getHeaders().getLocation();
+            if (location == null) {
+                throw new IOException("No session URI returned when starting upload.");
+            }
+            return location;
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Sends {@code count} bytes of {@code buffer} as the chunk starting at {@code offset}.
+     */
+    private HttpResponse putChunk(String sessionUri, String mimeType, byte[] buffer, int count,
+            long offset, long length) throws IOException {
+        HttpRequest request = newRequest(HttpMethods.PUT, new GenericUrl(sessionUri),
+                new ByteArrayContent(mimeType, buffer, 0, count));
+        String range = count == 0
+                ? "bytes */" + length
+                : "bytes " + offset + "-" + (offset + count - 1) + "/" + length;
+        request.getHeaders().setContentRange(range);
+        request.setThrowExceptionOnExecuteError(false);
+        return request.execute();
+    }
+
+    /**
+     * Returns the number of bytes the server has received for the session, or -1 if the session
+     * no longer exists.
+     */
+    private long queryOffset(String sessionUri, long length) throws IOException {
+        HttpRequest request = newRequest(HttpMethods.PUT, new GenericUrl(sessionUri),
+                new EmptyContent());
+        request.getHeaders().setContentRange("bytes */" + length);
+        request.setThrowExceptionOnExecuteError(false);
+
+        HttpResponse response = request.execute();
+        try {
+            int status = response.getStatusCode();
+            if (status == STATUS_RESUME_INCOMPLETE) {
+                return parseRangeEnd(response.getHeaders());
+            }
+            if (response.isSuccessStatusCode()) {
+                // Every byte was received before the previous attempt was interrupted.
+                return length;
+            }
+            return -1;
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    private HttpRequest newRequest(String method, GenericUrl url, HttpContent content)
+            throws IOException {
+        HttpRequestFactory factory = mDriveService.getRequestFactory();
+        HttpRequest request;
+        if (method.equals(HttpMethods.PATCH)
+                && !factory.getTransport().supportsMethod(HttpMethods.PATCH)) {
+            request = factory.buildRequest(HttpMethods.POST, url, content);
+            request.getHeaders().set("X-HTTP-Method-Override", HttpMethods.PATCH);
+        } else {
+            request = factory.buildRequest(method, url, content);
+        }
+        request.setParser(mDriveService.getObjectParser());
+        request.setFollowRedirects(false);
+        request.setNumberOfRetries(0);
+        return request;
+    }
+
+    /**
+     * Sleeps for the next interval of {@code backOff}.
+     */
+    private static void waitBeforeRetry(BackOff backOff) throws IOException {
+        try {
+            BackOffUtils.next(Sleeper.DEFAULT, backOff);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry the upload.");
+        }
+    }
+
+    /**
+     * Returns the lowercase hexadecimal MD5 checksum of the first {@code length} bytes of {@code
+     * channel}, in the form Drive reports as {@code md5Checksum}.
+     */
+    static String checksumOf(FileChannel channel, long length) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available.", e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+        long position = 0;
+        while (position < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Contents ended after " + position + " bytes.");
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+
+        StringBuilder checksum = new StringBuilder();
+        for (byte b : digest.digest()) {
+            checksum.append(Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return checksum.toString();
+    }
+
+    /**
+     * Reads up to {@code buffer.length} bytes of {@code source} starting at {@code offset}.
+     */
+    private static int readChunk(FileChannel source, long offset, byte[] buffer)
+            throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        long position = offset;
+        while (byteBuffer.hasRemaining()) {
+            int read = source.read(byteBuffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+        }
+        return byteBuffer.position();
+    }
+
+    /**
+     * Returns the offset following the last byte in a {@code Range: bytes=0-N} header, or 0 if
+     * the server has not received any bytes.
+     */
+    private static long parseRangeEnd(HttpHeaders headers) {
+        String range = headers.getRange();
+        if (range == null) {
+            return 0;
+        }
+        return Long.parseLong(range.substring(range.indexOf('-') + 1)) + 1;
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.drive.sample.driveapimigration;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.concurrent.Callable;
+
+/**
+ * An {@link OutputStream} which decodes the bytes written to it as text.
+ *
+ * <p>The charset is taken from a byte order mark at the start of the content if there is one,
+ * otherwise from the {@code charset} parameter of the content's MIME type, and otherwise defaults
+ * to UTF-8. Bytes are decoded as they arrive through a single reusable {@link ByteBuffer} into a
+ * {@link CharBuffer} which grows as needed, and {@link #getText()} returns that buffer rather than
+ * building a {@link String} from it. This only saves a copy where the text is read as a {@link
+ * CharSequence}; {@code EditText.setText} still copies it. Line terminators are kept as they
+ * are.</p>
+ */
+public class TextDecoder extends OutputStream {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_BOM_LENGTH = 3;
+
+    private final Callable<String> mMimeType;
+    private final ByteBuffer mInput = ByteBuffer.allocate(BUFFER_SIZE);
+    private CharBuffer mOutput;
+    private CharsetDecoder mDecoder;
+    private CharBuffer mText;
+
+    /**
+     * Creates a decoder for content of the given {@code mimeType}, which may be {@code null}.
+     */
+    public TextDecoder(String mimeType) {
+        this(() -> mimeType);
+    }
+
+    /**
+     * Creates a decoder which calls {@code mimeType} for the content's MIME type only once the
+     * first bytes have arrived, so that the MIME type can be fetched while the content downloads.
+     */
+    public TextDecoder(Callable<String> mimeType) {
+        mMimeType = mimeType;
+        mOutput = CharBuffer.allocate(BUFFER_SIZE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (mText != null) {
+            throw new IOException("Text has already been decoded.");
+        }
+        while (length > 0) {
+            int count = Math.min(length, mInput.remaining());
+            mInput.put(bytes, offset, count);
+            offset += count;
+            length -= count;
+            decode(false);
+        }
+    }
+
+    /**
+     * Decodes any remaining bytes and returns the decoded text. No more bytes may be written
+     * afterwards.
+     */
+    public CharSequence getText() throws IOException {
+        if (mText == null) {
+            decode(true);
+            while (mDecoder.flush(mOutput).isOverflow()) {
+                grow();
+            }
+            mOutput.flip();
+            mText = mOutput;
+        }
+        return mText;
+    }
+
+    /**
+     * Decodes as much of the buffered input as possible into the output buffer.
+     */
+    private void decode(boolean endOfInput) throws IOException {
+        mInput.flip();
+        if (mDecoder == null) {
+            if (!endOfInput && mInput.remaining() < MAX_BOM_LENGTH) {
+                // Wait for enough bytes to recognize a byte order mark.
+                mInput.compact();
+                return;
+            }
+            Charset charset = skipByteOrderMark(mInput);
+            if (charset == null) {
+                charset = charsetOf(getMimeType());
+            }
+            if (charset == null) {
+                charset = StandardCharsets.UTF_8;
+            }
+            mDecoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        while (true) {
+            CoderResult result = mDecoder.decode(mInput, mOutput, endOfInput);
+            if (result.isOverflow()) {
+                grow();
+            } else if (result.isError()) {
+                result.throwException();
+            } else {
+                break;
+            }
+        }
+        mInput.compact();
+    }
+
+    private String getMimeType() throws IOException {
+        try {
+            return mMimeType.call();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Unable to get the MIME type of the content.", e);
+        }
+    }
+
+    private void grow() {
+        CharBuffer larger = CharBuffer.allocate(mOutput.capacity() * 2);
+        mOutput.flip();
+        larger.put(mOutput);
+        mOutput = larger;
+    }
+
+    /**
+     * Advances {@code buffer} past a byte order mark and returns the charset it indicates, or
+     * returns {@code null} if {@code buffer} does not start with one.
+     */
+    private static Charset skipByteOrderMark(ByteBuffer buffer) {
+        int position = buffer.position();
+        int remaining = buffer.remaining();
+        int b0 = remaining > 0 ? buffer.get(position) & 0xFF : -1;
+        int b1 = remaining > 1 ? buffer.get(position + 1) & 0xFF : -1;
+        int b2 = remaining > 2 ? buffer.get(position + 2) & 0xFF : -1;
+        if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF) {
+            buffer.position(position + 3);
+            return StandardCharsets.UTF_8;
+        }
+        if (b0 == 0xFE && b1 == 0xFF) {
+            buffer.position(position + 2);
+            return StandardCharsets.UTF_16BE;
+        }
+        if (b0 == 0xFF && b1 == 0xFE) {
+            buffer.position(position + 2);
+            return StandardCharsets.UTF_16LE;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the charset named by the {@code charset} parameter of {@code mimeType}, or {@code
+     * null} if there is none or it is not supported.
+     */
+    private static Charset charsetOf(String mimeType) {
+        if (mimeType == null) {
+            return null;
+        }
+        for (String parameter : mimeType.split(";")) {
+            String[] pair = parameter.trim().split("=", 2);
+            if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("charset")) {
+                try {
+                    return Charset.forName(pair[1].trim().replace("\"", ""));
+                } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+}
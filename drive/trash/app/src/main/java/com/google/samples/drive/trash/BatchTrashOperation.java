@@ -0,0 +1,156 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.samples.drive.trash;
+
+import android.os.SystemClock;
+
+import com.google.android.gms.drive.DriveResource;
+import com.google.android.gms.drive.DriveResourceClient;
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Trashes or untrashes many files and folders, with a bounded number of requests in flight.
+ *
+ * <p>Each item is reported to a {@link ProgressListener} as soon as its request completes, so the
+ * caller can update or revert its row right away, and the operation as a whole completes with a
+ * {@link Result} listing the items which failed. The operation must be started on the main
+ * thread.</p>
+ */
+class BatchTrashOperation {
+    /**
+     * Receives the outcome of each item, on the main thread.
+     */
+    interface ProgressListener {
+        /**
+         * Called once the request for {@code item} completes, with the error if it failed or
+         * {@code null} if it succeeded.
+         */
+        void onItemDone(Metadata item, Exception error);
+    }
+
+    /**
+     * The outcome of a batch.
+     */
+    static class Result {
+        final int succeededCount;
+        final Map<Metadata, Exception> failures;
+        final long elapsedMillis;
+
+        Result(int succeededCount, Map<Metadata, Exception> failures, long elapsedMillis) {
+            this.succeededCount = succeededCount;
+            this.failures = Collections.unmodifiableMap(failures);
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * Returns the number of items completed per second, whether they succeeded or not.
+         */
+        double getItemsPerSecond() {
+            int count = succeededCount + failures.size();
+            return elapsedMillis == 0 ? count : count * 1000.0 / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{succeeded=" + succeededCount
+                    + ", failed=" + failures.size()
+                    + ", elapsedMillis=" + elapsedMillis
+                    + ", itemsPerSecond=" + getItemsPerSecond() + "}";
+        }
+    }
+
+    private final DriveResourceClient driveResourceClient;
+    private final boolean trash;
+    private final int maxConcurrent;
+    private final ProgressListener listener;
+
+    private final Queue<Metadata> queue;
+    private final TaskCompletionSource<Result> completion = new TaskCompletionSource<>();
+    private final Map<Metadata, Exception> failures = new LinkedHashMap<>();
+    private int running;
+    private int succeededCount;
+    private long startTime = -1;
+
+    /**
+     * Creates an operation which trashes {@code items} if {@code trash} is set, and untrashes them
+     * otherwise, with up to {@code maxConcurrent} requests in flight.
+     */
+    BatchTrashOperation(DriveResourceClient driveResourceClient, List<Metadata> items,
+            boolean trash, int maxConcurrent, ProgressListener listener) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("At least one request must be allowed.");
+        }
+        this.driveResourceClient = driveResourceClient;
+        this.trash = trash;
+        this.maxConcurrent = maxConcurrent;
+        this.listener = listener;
+        queue = new ArrayDeque<>(items);
+    }
+
+    /**
+     * Starts sending requests, and returns a task which completes once every item is done. The
+     * task never fails; failed items are listed in its {@link Result}.
+     */
+    Task<Result> start() {
+        if (startTime >= 0) {
+            throw new IllegalStateException("The operation was already started.");
+        }
+        startTime = SystemClock.elapsedRealtime();
+        startRequests();
+        return completion.getTask();
+    }
+
+    private void startRequests() {
+        if (queue.isEmpty() && running == 0) {
+            completion.setResult(new Result(succeededCount, failures,
+                    SystemClock.elapsedRealtime() - startTime));
+            return;
+        }
+        while (running < maxConcurrent && !queue.isEmpty()) {
+            Metadata item = queue.remove();
+            running++;
+            // [START drive_android_trash]
+            DriveResource driveResource = item.getDriveId().asDriveResource();
+            Task<Void> toggleTrashTask;
+            if (trash) {
+                toggleTrashTask = driveResourceClient.trash(driveResource);
+            } else {
+                toggleTrashTask = driveResourceClient.untrash(driveResource);
+            }
+            // [END drive_android_trash]
+            toggleTrashTask.addOnCompleteListener(task -> {
+                running--;
+                if (task.isSuccessful()) {
+                    succeededCount++;
+                    listener.onItemDone(item, null);
+                } else {
+                    failures.put(item, task.getException());
+                    listener.onItemDone(item, task.getException());
+                }
+                startRequests();
+            });
+        }
+    }
+}
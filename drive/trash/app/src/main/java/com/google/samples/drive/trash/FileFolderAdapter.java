@@ -24,12 +24,22 @@ import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.google.android.gms.drive.DriveId;
 import com.google.android.gms.drive.Metadata;
 
-import java.util.List;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Adapter for displaying files and folders in the ListView.
+ *
+ * <p>Rows are read from a {@link PagedListing}, which freezes items only as they are displayed.
+ * The ListView rebinds just its visible rows when the data set changes, so replacing the listing
+ * costs the same whatever the size of the folder.</p>
+ *
+ * <p>Item IDs are derived from the items' DriveIds, so they are stable across listings and the
+ * ListView keeps the checked items checked when a folder is reloaded.</p>
  */
 class FileFolderAdapter extends ArrayAdapter<Metadata> {
     /**
@@ -41,12 +51,13 @@ class FileFolderAdapter extends ArrayAdapter<Metadata> {
         ImageView fileFolderImageView;
     }
 
-    private List<Metadata> fileMetadata;
+    private PagedListing listing;
     private boolean enabled;
+    // Trash states shown in place of the listed ones while a change to them is in progress.
+    private final Map<DriveId, Boolean> trashedOverrides = new HashMap<>();
 
-    FileFolderAdapter(Context context, int resource, List<Metadata> fileMetadata) {
+    FileFolderAdapter(Context context, int resource) {
         super(context, resource);
-        this.fileMetadata = fileMetadata;
         enabled = true;
     }
 
@@ -73,7 +84,7 @@ class FileFolderAdapter extends ArrayAdapter<Metadata> {
         final Metadata metadata = getItem(position);
         assert metadata != null;
         viewHolder.filenameTextView.setText(metadata.getTitle());
-        viewHolder.trashStatusTextView.setText(metadata.isTrashed()
+        viewHolder.trashStatusTextView.setText(isTrashed(metadata)
                         ? getContext().getResources().getString(R.string.trashed_status)
                         : getContext().getResources().getString(R.string.not_trashed_status));
         if (metadata.isFolder()) {
@@ -88,12 +99,22 @@ class FileFolderAdapter extends ArrayAdapter<Metadata> {
 
     @Override
     public int getCount() {
-        return fileMetadata.size();
+        return listing != null ? listing.getCount() : 0;
     }
 
     @Override
     public Metadata getItem(int position) {
-        return fileMetadata.get(position);
+        return listing.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return idOf(getItem(position).getDriveId());
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
     }
 
     @Override
@@ -101,11 +122,72 @@ class FileFolderAdapter extends ArrayAdapter<Metadata> {
         return enabled;
     }
 
-    void setFiles(List<Metadata> fileMetadata) {
-        this.fileMetadata = fileMetadata;
+    /**
+     * Shows the items of {@code listing}, holding a reference to it until another listing is
+     * shown. Passing {@code null} clears the adapter.
+     */
+    void setListing(PagedListing listing) {
+        if (listing == this.listing) {
+            return;
+        }
+        if (listing != null) {
+            listing.acquire();
+        }
+        if (this.listing != null) {
+            this.listing.release();
+        }
+        this.listing = listing;
+        notifyDataSetChanged();
     }
 
     void setEnabled(boolean enabled) {
         this.enabled = enabled;
     }
+
+    /**
+     * Shows {@code items} as trashed, or as not trashed, until the override is cleared.
+     */
+    void setTrashedOverride(Collection<Metadata> items, boolean trashed) {
+        for (Metadata item : items) {
+            trashedOverrides.put(item.getDriveId(), trashed);
+        }
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Shows the listed trash state of {@code item} again.
+     */
+    void clearTrashedOverride(Metadata item) {
+        if (trashedOverrides.remove(item.getDriveId()) != null) {
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Shows the listed trash state of every item again.
+     */
+    void clearTrashedOverrides() {
+        if (!trashedOverrides.isEmpty()) {
+            trashedOverrides.clear();
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Returns the item ID of the file or folder {@code driveId}.
+     */
+    static long idOf(DriveId driveId) {
+        String resourceId = driveId.getResourceId();
+        String key = resourceId != null ? resourceId : driveId.encodeToString();
+        long id = 0;
+        for (int i = 0; i < key.length(); i++) {
+            id = 31 * id + key.charAt(i);
+        }
+        return id;
+    }
+
+    private boolean isTrashed(Metadata metadata) {
+        Boolean trashed = trashedOverrides.get(metadata.getDriveId());
+        return trashed != null ? trashed : metadata.isTrashed();
+    }
 }
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.samples.drive.trash;
+
+import android.util.LruCache;
+
+import com.google.android.gms.drive.DriveId;
+
+/**
+ * Snapshots of recently viewed folders, so that a folder can be shown at once while it is
+ * reloaded from Drive.
+ *
+ * <p>The cache's budget is a number of children, since that is what the listings' buffers grow
+ * with; the least recently used snapshots are evicted beyond it. The cache holds a reference to
+ * each cached listing and releases it on eviction.</p>
+ */
+class FolderCache extends LruCache<DriveId, FolderCache.Snapshot> {
+    /**
+     * The title and children of a folder at the time it was loaded.
+     */
+    static class Snapshot {
+        final String title;
+        final PagedListing listing;
+
+        /**
+         * Creates a snapshot owning the reference held to {@code listing}.
+         */
+        Snapshot(String title, PagedListing listing) {
+            this.title = title;
+            this.listing = listing;
+        }
+
+        /**
+         * Returns whether {@code other} shows the same folder contents.
+         */
+        boolean isSameAs(Snapshot other) {
+            return title.equals(other.title) && listing.hasSameChildren(other.listing);
+        }
+    }
+
+    /**
+     * Creates a cache holding snapshots of up to {@code maxChildren} children in total.
+     */
+    FolderCache(int maxChildren) {
+        super(maxChildren);
+    }
+
+    @Override
+    protected int sizeOf(DriveId folderId, Snapshot snapshot) {
+        // Count the folder itself, so that empty folders also take up room.
+        return snapshot.listing.getCount() + 1;
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, DriveId folderId, Snapshot oldSnapshot,
+            Snapshot newSnapshot) {
+        if (oldSnapshot != newSnapshot) {
+            oldSnapshot.listing.release();
+        }
+    }
+}
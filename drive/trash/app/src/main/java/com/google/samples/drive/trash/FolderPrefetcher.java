@@ -0,0 +1,216 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.samples.drive.trash;
+
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.tasks.Task;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Loads the first child folders of the folder being viewed into the {@link FolderCache}, so that
+ * opening one of them shows it at once.
+ *
+ * <p>Only a few loads run at a time, so prefetching never crowds out the requests made for the
+ * folder on screen. Prefetching the children of another folder cancels the loads which have not
+ * started yet; loads already running complete and are cached, but nothing more is started for the
+ * folder which was left.</p>
+ *
+ * <p>A folder opened while its prefetch is still running should wait for {@link
+ * #getRunningLoad} rather than load it again. A prefetched folder counts as a hit if it is opened
+ * while it loads or before the user leaves its parent, and as wasted otherwise. The prefetcher
+ * must only be used on the main thread.</p>
+ */
+class FolderPrefetcher {
+    /**
+     * Loads a snapshot of a folder without showing it.
+     */
+    interface Loader {
+        Task<FolderCache.Snapshot> load(DriveId folderId);
+    }
+
+    private final FolderCache cache;
+    private final Loader loader;
+    private final int maxConcurrent;
+    private final int maxFolders;
+
+    private DriveId parentId;
+    private final Queue<DriveId> queue = new ArrayDeque<>();
+    // Folders prefetched for the current parent which have not been opened yet.
+    private final Set<DriveId> unopened = new HashSet<>();
+    // Loads which have not completed yet, by folder.
+    private final Map<DriveId, Task<FolderCache.Snapshot>> running = new HashMap<>();
+    // Folders opened while they were loading.
+    private final Set<DriveId> openedWhileLoading = new HashSet<>();
+    private boolean closed;
+
+    private long prefetchCount;
+    private long hitCount;
+    private long wastedCount;
+    private long cancelledCount;
+    private long failedCount;
+
+    /**
+     * Creates a prefetcher which runs up to {@code maxConcurrent} loads at a time and prefetches
+     * up to {@code maxFolders} child folders of each folder viewed.
+     */
+    FolderPrefetcher(FolderCache cache, Loader loader, int maxConcurrent, int maxFolders) {
+        this.cache = cache;
+        this.loader = loader;
+        this.maxConcurrent = maxConcurrent;
+        this.maxFolders = maxFolders;
+    }
+
+    /**
+     * Starts prefetching the first child folders listed in {@code listing}, the children of the
+     * folder {@code folderId}, unless they are being prefetched already.
+     */
+    void prefetch(DriveId folderId, PagedListing listing) {
+        if (closed || folderId.equals(parentId)) {
+            return;
+        }
+        cancel();
+        parentId = folderId;
+        int count = Math.min(listing.getFolderCount(), maxFolders);
+        for (int i = 0; i < count; i++) {
+            DriveId childId = listing.get(i).getDriveId();
+            if (cache.get(childId) == null) {
+                queue.add(childId);
+            }
+        }
+        startLoads();
+    }
+
+    /**
+     * Records that the folder {@code folderId} was opened, counting a hit if it was prefetched.
+     */
+    void onFolderOpened(DriveId folderId) {
+        if (unopened.remove(folderId)) {
+            hitCount++;
+        } else if (running.containsKey(folderId)) {
+            // Counted as a hit once the load succeeds.
+            openedWhileLoading.add(folderId);
+        }
+    }
+
+    /**
+     * Returns the task of the prefetch of the folder {@code folderId} if it is still running, or
+     * {@code null} otherwise. Unless the load fails, or the snapshot is too large to keep, the
+     * snapshot is in the cache by the time listeners added to the task are called.
+     */
+    Task<FolderCache.Snapshot> getRunningLoad(DriveId folderId) {
+        return running.get(folderId);
+    }
+
+    /**
+     * Stops prefetching for the current folder. Prefetched folders which were not opened count as
+     * wasted.
+     */
+    void cancel() {
+        cancelledCount += queue.size();
+        queue.clear();
+        wastedCount += unopened.size();
+        unopened.clear();
+        parentId = null;
+    }
+
+    /**
+     * Stops prefetching for good. Loads still running are released rather than cached when they
+     * complete.
+     */
+    void close() {
+        cancel();
+        closed = true;
+    }
+
+    /**
+     * Returns the number of folders loaded by prefetching.
+     */
+    long getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    /**
+     * Returns the number of prefetched folders which were opened.
+     */
+    long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of prefetched folders which were never opened.
+     */
+    long getWastedCount() {
+        return wastedCount;
+    }
+
+    /**
+     * Returns the fraction of prefetched folders which were opened.
+     */
+    double getHitRate() {
+        return prefetchCount == 0 ? 0 : (double) hitCount / prefetchCount;
+    }
+
+    private void startLoads() {
+        while (running.size() < maxConcurrent && !queue.isEmpty()) {
+            DriveId folderId = queue.remove();
+            DriveId loadParentId = parentId;
+            Task<FolderCache.Snapshot> load = loader.load(folderId);
+            running.put(folderId, load);
+            load.addOnCompleteListener(task -> {
+                running.remove(folderId);
+                boolean opened = openedWhileLoading.remove(folderId);
+                if (task.isSuccessful() && closed) {
+                    task.getResult().listing.release();
+                } else if (task.isSuccessful()) {
+                    prefetchCount++;
+                    FolderCache.Snapshot snapshot = task.getResult();
+                    if (cache.get(folderId) == null) {
+                        cache.put(folderId, snapshot);
+                    } else {
+                        // The folder was opened and loaded while it was being prefetched.
+                        snapshot.listing.release();
+                    }
+                    if (opened) {
+                        hitCount++;
+                    } else if (loadParentId.equals(parentId)) {
+                        unopened.add(folderId);
+                    } else {
+                        wastedCount++;
+                    }
+                } else {
+                    failedCount++;
+                }
+                startLoads();
+            });
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FolderPrefetcher{prefetched=" + prefetchCount
+                + ", hits=" + hitCount
+                + ", wasted=" + wastedCount
+                + ", cancelled=" + cancelledCount
+                + ", failed=" + failedCount
+                + ", hitRate=" + getHitRate() + "}";
+    }
+}
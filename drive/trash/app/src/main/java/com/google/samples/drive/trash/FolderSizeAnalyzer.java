@@ -0,0 +1,342 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.samples.drive.trash;
+
+import android.os.AsyncTask;
+
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.DriveResourceClient;
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.drive.MetadataBuffer;
+import com.google.android.gms.drive.query.Query;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Totals the files, bytes and trashed items under a folder, to show what trashing it affects.
+ *
+ * <p>A scan walks the tree breadth-first, with a bounded number of {@code queryChildren} requests
+ * in flight, and reports running totals as each folder is listed. Every folder listed is
+ * remembered by DriveId along with the totals of its subtree, so a later scan reuses them and
+ * only lists the folders which were {@linkplain #invalidate invalidated} since. The analyzer must
+ * only be used on the main thread.</p>
+ */
+class FolderSizeAnalyzer {
+    /**
+     * Counts of the files and folders under a folder.
+     */
+    static class Summary {
+        int fileCount;
+        int folderCount;
+        long totalBytes;
+        int trashedFileCount;
+        long trashedBytes;
+
+        int getUntrashedFileCount() {
+            return fileCount - trashedFileCount;
+        }
+
+        long getUntrashedBytes() {
+            return totalBytes - trashedBytes;
+        }
+
+        private void add(Summary other) {
+            fileCount += other.fileCount;
+            folderCount += other.folderCount;
+            totalBytes += other.totalBytes;
+            trashedFileCount += other.trashedFileCount;
+            trashedBytes += other.trashedBytes;
+        }
+
+        private Summary copy() {
+            Summary copy = new Summary();
+            copy.add(this);
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return "Summary{files=" + fileCount
+                    + ", folders=" + folderCount
+                    + ", bytes=" + totalBytes
+                    + ", trashedFiles=" + trashedFileCount
+                    + ", trashedBytes=" + trashedBytes + "}";
+        }
+    }
+
+    /**
+     * Receives the running totals of a scan, on the main thread.
+     */
+    interface ProgressListener {
+        /**
+         * Called each time a folder's children have been counted, with the totals so far and the
+         * number of folders still to be listed.
+         */
+        void onProgress(Summary partial, int pendingFolders);
+    }
+
+    /**
+     * The direct children of a listed folder.
+     */
+    private static class Node {
+        // Counts of the folder's direct children.
+        final Summary own;
+        final List<DriveId> childFolders;
+        // Whether the children must be listed again.
+        boolean stale;
+        // Totals of the whole subtree, or null if one of its folders is not known or is stale.
+        Summary subtree;
+
+        Node(Summary own, List<DriveId> childFolders) {
+            this.own = own;
+            this.childFolders = childFolders;
+        }
+    }
+
+    private final DriveResourceClient driveResourceClient;
+    private final int maxConcurrent;
+    private final Map<DriveId, Node> nodes = new HashMap<>();
+    // Each listed folder's parent in the last scan which reached it.
+    private final Map<DriveId, DriveId> parents = new HashMap<>();
+
+    private long listedCount;
+    private long reusedCount;
+
+    /**
+     * Creates an analyzer which lists up to {@code maxConcurrent} folders at a time.
+     */
+    FolderSizeAnalyzer(DriveResourceClient driveResourceClient, int maxConcurrent) {
+        this.driveResourceClient = driveResourceClient;
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * Starts totaling the tree under the folder {@code rootId}, reporting progress to {@code
+     * listener}.
+     */
+    Scan scan(DriveId rootId, ProgressListener listener) {
+        Scan scan = new Scan(rootId, listener);
+        scan.pump();
+        return scan;
+    }
+
+    /**
+     * Marks the children of the folder {@code folderId} as changed, so that the next scan lists
+     * it again.
+     */
+    void invalidate(DriveId folderId) {
+        Node node = nodes.get(folderId);
+        if (node != null) {
+            node.stale = true;
+        }
+        clearSubtreeTotals(folderId);
+    }
+
+    /**
+     * Marks every folder under {@code folderId}, and the folder itself, as changed. This is needed
+     * when the trash state of the folder changes, since it applies to all its descendants.
+     */
+    void invalidateSubtree(DriveId folderId) {
+        Set<DriveId> visited = new HashSet<>();
+        Queue<DriveId> queue = new ArrayDeque<>();
+        queue.add(folderId);
+        while (!queue.isEmpty()) {
+            DriveId id = queue.remove();
+            Node node = nodes.get(id);
+            if (node != null && visited.add(id)) {
+                node.stale = true;
+                node.subtree = null;
+                queue.addAll(node.childFolders);
+            }
+        }
+        clearSubtreeTotals(folderId);
+    }
+
+    /**
+     * Returns the number of folders listed from Drive.
+     */
+    long getListedCount() {
+        return listedCount;
+    }
+
+    /**
+     * Returns the number of folders whose remembered children or subtree totals were reused.
+     */
+    long getReusedCount() {
+        return reusedCount;
+    }
+
+    private void clearSubtreeTotals(DriveId folderId) {
+        Set<DriveId> visited = new HashSet<>();
+        for (DriveId id = folderId; id != null && visited.add(id); id = parents.get(id)) {
+            Node node = nodes.get(id);
+            if (node != null) {
+                node.subtree = null;
+            }
+        }
+    }
+
+    /**
+     * Lists the direct children of a folder off the main thread.
+     */
+    private Task<Node> list(DriveId folderId) {
+        Query query = new Query.Builder().build();
+        return driveResourceClient.queryChildren(folderId.asDriveFolder(), query)
+                .continueWith(AsyncTask.THREAD_POOL_EXECUTOR, task -> {
+                    MetadataBuffer children = task.getResult();
+                    try {
+                        Summary own = new Summary();
+                        List<DriveId> childFolders = new ArrayList<>();
+                        for (Metadata child : children) {
+                            if (child.isFolder()) {
+                                own.folderCount++;
+                                childFolders.add(child.getDriveId());
+                            } else {
+                                own.fileCount++;
+                                own.totalBytes += child.getFileSize();
+                                if (child.isTrashed()) {
+                                    own.trashedFileCount++;
+                                    own.trashedBytes += child.getFileSize();
+                                }
+                            }
+                        }
+                        return new Node(own, childFolders);
+                    } finally {
+                        children.release();
+                    }
+                });
+    }
+
+    /**
+     * Computes and remembers the subtree totals of the folders reached by a scan, children before
+     * parents.
+     */
+    private Summary computeSubtree(DriveId folderId, Set<DriveId> inProgress) {
+        Node node = nodes.get(folderId);
+        if (node.subtree != null) {
+            return node.subtree;
+        }
+        inProgress.add(folderId);
+        Summary subtree = node.own.copy();
+        for (DriveId childId : node.childFolders) {
+            // Skip folders reached twice through a cycle of parents.
+            if (!inProgress.contains(childId) && nodes.containsKey(childId)) {
+                subtree.add(computeSubtree(childId, inProgress));
+            }
+        }
+        inProgress.remove(folderId);
+        node.subtree = subtree;
+        return subtree;
+    }
+
+    /**
+     * A breadth-first walk of the tree under one folder.
+     */
+    class Scan {
+        private final DriveId rootId;
+        private final ProgressListener listener;
+        private final TaskCompletionSource<Summary> completion = new TaskCompletionSource<>();
+        private final Queue<DriveId> queue = new ArrayDeque<>();
+        private final Set<DriveId> reached = new HashSet<>();
+        private final Summary partial = new Summary();
+        private int running;
+        private boolean finished;
+
+        private Scan(DriveId rootId, ProgressListener listener) {
+            this.rootId = rootId;
+            this.listener = listener;
+            queue.add(rootId);
+            reached.add(rootId);
+        }
+
+        /**
+         * Returns a task which completes with the totals of the whole tree.
+         */
+        Task<Summary> getTask() {
+            return completion.getTask();
+        }
+
+        /**
+         * Stops the scan. Listings already in flight are still remembered when they complete,
+         * but no further progress is reported and the task never completes.
+         */
+        void cancel() {
+            finished = true;
+            queue.clear();
+        }
+
+        private void pump() {
+            while (!finished && running < maxConcurrent && !queue.isEmpty()) {
+                DriveId folderId = queue.remove();
+                Node node = nodes.get(folderId);
+                if (node != null && !node.stale) {
+                    reusedCount++;
+                    visit(folderId, node);
+                    continue;
+                }
+                running++;
+                list(folderId).addOnCompleteListener(task -> {
+                    running--;
+                    if (task.isSuccessful()) {
+                        listedCount++;
+                        nodes.put(folderId, task.getResult());
+                    }
+                    if (finished) {
+                        return;
+                    }
+                    if (!task.isSuccessful()) {
+                        cancel();
+                        completion.setException(task.getException());
+                        return;
+                    }
+                    visit(folderId, task.getResult());
+                    listener.onProgress(partial.copy(), queue.size() + running);
+                    pump();
+                });
+            }
+            if (!finished && running == 0 && queue.isEmpty()) {
+                finished = true;
+                Summary total = computeSubtree(rootId, new HashSet<>());
+                listener.onProgress(total.copy(), 0);
+                completion.setResult(total.copy());
+            }
+        }
+
+        private void visit(DriveId folderId, Node node) {
+            if (node.subtree != null) {
+                // Nothing under this folder changed since its totals were computed.
+                partial.add(node.subtree);
+                return;
+            }
+            partial.add(node.own);
+            for (DriveId childId : node.childFolders) {
+                if (reached.add(childId)) {
+                    parents.put(childId, folderId);
+                    queue.add(childId);
+                }
+            }
+        }
+    }
+}
@@ -16,11 +16,18 @@
 package com.google.samples.drive.trash;
 
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v4.app.FragmentActivity;
+import android.text.format.Formatter;
 import android.util.Log;
+import android.util.LongSparseArray;
+import android.view.ActionMode;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.Button;
 import android.widget.ListView;
@@ -35,12 +42,14 @@ import com.google.android.gms.drive.Drive;
 import com.google.android.gms.drive.DriveFile;
 import com.google.android.gms.drive.DriveFolder;
 import com.google.android.gms.drive.DriveId;
-import com.google.android.gms.drive.DriveResource;
 import com.google.android.gms.drive.DriveResourceClient;
 import com.google.android.gms.drive.Metadata;
 import com.google.android.gms.drive.MetadataBuffer;
 import com.google.android.gms.drive.MetadataChangeSet;
+import com.google.android.gms.drive.query.Filter;
+import com.google.android.gms.drive.query.Filters;
 import com.google.android.gms.drive.query.Query;
+import com.google.android.gms.drive.query.SearchableField;
 import com.google.android.gms.drive.query.SortOrder;
 import com.google.android.gms.drive.query.SortableField;
 import com.google.android.gms.tasks.Continuation;
@@ -50,9 +59,8 @@ import com.google.android.gms.tasks.Task;
 import com.google.android.gms.tasks.Tasks;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 
 /**
@@ -62,17 +70,41 @@ import java.util.Stack;
 public class MainActivity extends FragmentActivity {
     private static final String TAG = "MainActivity";
     private static final int REQUEST_CODE_SIGN_IN = 0;
+    // The number of children for which folder snapshots are kept.
+    private static final int MAX_CACHED_CHILDREN = 20000;
+    // The number of child folders of the current folder to prefetch, and how many at a time.
+    private static final int MAX_PREFETCHED_FOLDERS = 8;
+    private static final int MAX_CONCURRENT_PREFETCHES = 2;
+    // The number of trash and untrash requests sent at once when changing many items.
+    private static final int MAX_CONCURRENT_TRASH_REQUESTS = 8;
+    // The number of folders listed at once when totaling the size of a folder.
+    private static final int MAX_CONCURRENT_SIZE_QUERIES = 4;
 
     // Handles access to files in Drive
     private DriveResourceClient mDriveResourceClient;
 
     private Stack<DriveId> mNavigationPath;
     private FileFolderAdapter mFileFolderAdapter;
+    private final FolderCache mFolderCache = new FolderCache(MAX_CACHED_CHILDREN);
+    private final FolderPrefetcher mFolderPrefetcher = new FolderPrefetcher(mFolderCache,
+            this::loadSnapshot, MAX_CONCURRENT_PREFETCHES, MAX_PREFETCHED_FOLDERS);
 
     private TextView mCurrentFolderNameTextView;
     private Button mAddFileButton;
     private Button mAddFolderButton;
     private Button mPreviousFolderButton;
+    private Button mAnalyzeButton;
+    private TextView mFolderSizeTextView;
+
+    private FolderSizeAnalyzer mFolderSizeAnalyzer;
+    private FolderSizeAnalyzer.Scan mFolderSizeScan;
+
+    // The checked items, by item ID, so they can be found even after the folder is reloaded.
+    private final LongSparseArray<Metadata> mSelection = new LongSparseArray<>();
+
+    // Set once the activity is destroyed, after which loads release their listings rather than
+    // caching or showing them.
+    private boolean mDestroyed;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -83,16 +115,60 @@ public class MainActivity extends FragmentActivity {
         mCurrentFolderNameTextView = findViewById(R.id.folderNameTextView);
 
         // An adapter for accessing and displaying resources (files and folders).
-        mFileFolderAdapter = new FileFolderAdapter(
-                this, R.layout.resource_item, Collections.<Metadata>emptyList());
+        mFileFolderAdapter = new FileFolderAdapter(this, R.layout.resource_item);
 
         ListView fileFolderListView = findViewById(R.id.fileListView);
-        // Trash or untrash a resource with a long click.
-        fileFolderListView.setOnItemLongClickListener((parent, view, position, id) -> {
-            // Metadata provides access to a DriveFile or DriveFolder's trash state.
-            Metadata metadata = mFileFolderAdapter.getItem(position);
-            toggleTrashStatus(metadata);
-            return true;
+        // Select resources starting with a long click, then trash or untrash them together.
+        fileFolderListView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+        fileFolderListView.setMultiChoiceModeListener(new AbsListView.MultiChoiceModeListener() {
+            @Override
+            public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+                mode.getMenuInflater().inflate(R.menu.batch_trash, menu);
+                return true;
+            }
+
+            @Override
+            public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+                return false;
+            }
+
+            @Override
+            public void onItemCheckedStateChanged(
+                    ActionMode mode, int position, long id, boolean checked) {
+                if (checked) {
+                    mSelection.put(id, mFileFolderAdapter.getItem(position));
+                } else {
+                    mSelection.remove(id);
+                }
+                mode.setTitle(getString(R.string.selected_count,
+                        fileFolderListView.getCheckedItemCount()));
+            }
+
+            @Override
+            public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+                int itemId = item.getItemId();
+                if (itemId != R.id.trashAction && itemId != R.id.untrashAction) {
+                    return false;
+                }
+                // Metadata provides access to a DriveFile or DriveFolder's trash state. The
+                // selection is resolved by ID, since the listing may have been reloaded, and
+                // positions shifted, since the items were checked.
+                List<Metadata> selected = new ArrayList<>();
+                for (long id : fileFolderListView.getCheckedItemIds()) {
+                    Metadata metadata = mSelection.get(id);
+                    if (metadata != null) {
+                        selected.add(metadata);
+                    }
+                }
+                setTrashStatus(selected, itemId == R.id.trashAction);
+                mode.finish();
+                return true;
+            }
+
+            @Override
+            public void onDestroyActionMode(ActionMode mode) {
+                mSelection.clear();
+            }
         });
 
         // Show a view of folder contents when a folder is clicked on.
@@ -114,6 +190,11 @@ public class MainActivity extends FragmentActivity {
         mAddFolderButton.setEnabled(false);
         mAddFolderButton.setOnClickListener(view -> createFolder());
 
+        mAnalyzeButton = findViewById(R.id.analyzeButton);
+        mAnalyzeButton.setEnabled(false);
+        mAnalyzeButton.setOnClickListener(v -> analyzeCurrentFolder());
+        mFolderSizeTextView = findViewById(R.id.folderSizeTextView);
+
         mPreviousFolderButton = findViewById(R.id.previousButton);
         mPreviousFolderButton.setEnabled(false);
         mPreviousFolderButton.setOnClickListener(v -> navigateBack());
@@ -134,6 +215,16 @@ public class MainActivity extends FragmentActivity {
         signIn();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mDestroyed = true;
+        mFolderPrefetcher.close();
+        Log.d(TAG, mFolderPrefetcher.toString());
+        mFileFolderAdapter.setListing(null);
+        mFolderCache.evictAll();
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle savedInstanceState) {
         super.onSaveInstanceState(savedInstanceState);
@@ -183,6 +274,8 @@ public class MainActivity extends FragmentActivity {
      */
     private void initializeDriveResourceClient(GoogleSignInAccount signInAccount) {
         mDriveResourceClient = Drive.getDriveResourceClient(getApplicationContext(), signInAccount);
+        mFolderSizeAnalyzer =
+                new FolderSizeAnalyzer(mDriveResourceClient, MAX_CONCURRENT_SIZE_QUERIES);
         onDriveClientReady();
     }
 
@@ -217,26 +310,61 @@ public class MainActivity extends FragmentActivity {
     }
 
     /**
-     * Trashes or untrashes the given item.
+     * Trashes or untrashes the given items, showing their new state before the requests complete
+     * and reloading the folder once they all have.
      *
-     * @param metadata Item to (un)trash
+     * @param items Items to (un)trash
+     * @param trash Whether to trash the items rather than untrash them
      */
-    private void toggleTrashStatus(Metadata metadata) {
-        // [START drive_android_trash]
-        if (!metadata.isTrashable()) {
+    private void setTrashStatus(List<Metadata> items, boolean trash) {
+        List<Metadata> changed = new ArrayList<>();
+        boolean hasUntrashable = false;
+        for (Metadata metadata : items) {
+            if (!metadata.isTrashable()) {
+                hasUntrashable = true;
+            } else if (metadata.isTrashed() != trash) {
+                changed.add(metadata);
+            }
+        }
+        if (hasUntrashable) {
             showMessage(R.string.trashable_error);
+        }
+        if (changed.isEmpty()) {
             return;
         }
-        DriveResource driveResource = metadata.getDriveId().asDriveResource();
-        Task<Void> toggleTrashTask;
-        if (metadata.isTrashed()) {
-            toggleTrashTask = mDriveResourceClient.untrash(driveResource);
-        } else {
-            toggleTrashTask = mDriveResourceClient.trash(driveResource);
+
+        setUiInteractionsEnabled(false);
+        mFileFolderAdapter.setTrashedOverride(changed, trash);
+        DriveId folderId = mNavigationPath.peek();
+        BatchTrashOperation operation = new BatchTrashOperation(mDriveResourceClient, changed,
+                trash, MAX_CONCURRENT_TRASH_REQUESTS, (metadata, error) -> {
+                    if (error != null) {
+                        mFileFolderAdapter.clearTrashedOverride(metadata);
+                    } else if (metadata.isFolder()) {
+                        // The trash state of a folder applies to everything under it.
+                        mFolderSizeAnalyzer.invalidateSubtree(metadata.getDriveId());
+                        mFolderSizeAnalyzer.invalidate(folderId);
+                    } else {
+                        mFolderSizeAnalyzer.invalidate(folderId);
+                    }
+                });
+        Task<BatchTrashOperation.Result> batchTask =
+                operation.start().addOnSuccessListener(this, this::reportBatchResult);
+        Task<Void> updateTask = updateUiAfterTask(batchTask);
+        updateTask.addOnCompleteListener(task -> mFileFolderAdapter.clearTrashedOverrides());
+        handleTaskError(updateTask, R.string.unexpected_error);
+    }
+
+    private void reportBatchResult(BatchTrashOperation.Result result) {
+        Log.i(TAG, "Batch trash status change finished: " + result);
+        if (!result.failures.isEmpty()) {
+            for (Map.Entry<Metadata, Exception> failure : result.failures.entrySet()) {
+                Log.e(TAG, "Unable to change trash status of "
+                        + failure.getKey().getDriveId().encodeToString(), failure.getValue());
+            }
+            int total = result.succeededCount + result.failures.size();
+            showMessage(getString(R.string.batch_trash_failed, result.failures.size(), total));
         }
-        toggleTrashTask = updateUiAfterTask(toggleTrashTask);
-        handleTaskError(toggleTrashTask, R.string.unexpected_error);
-        // [END drive_android_trash]
     }
 
     /**
@@ -252,6 +380,8 @@ public class MainActivity extends FragmentActivity {
         DriveFolder driveFolder = mNavigationPath.peek().asDriveFolder();
         Task<DriveFile> createFileTask =
                 mDriveResourceClient.createFile(driveFolder, changeSet, null);
+        createFileTask.addOnSuccessListener(this,
+                driveFile -> mFolderSizeAnalyzer.invalidate(driveFolder.getDriveId()));
         Task<Void> updateTask = updateUiAfterTask(createFileTask);
         handleTaskError(updateTask, R.string.unexpected_error);
     }
@@ -268,83 +398,185 @@ public class MainActivity extends FragmentActivity {
         DriveFolder driveFolder = mNavigationPath.peek().asDriveFolder();
         Task<DriveFolder> createFolderTask =
                 mDriveResourceClient.createFolder(driveFolder, changeSet);
+        createFolderTask.addOnSuccessListener(this,
+                folder -> mFolderSizeAnalyzer.invalidate(driveFolder.getDriveId()));
         Task<Void> updateTask = updateUiAfterTask(createFolderTask);
         handleTaskError(updateTask, R.string.unexpected_error);
     }
 
     private void navigateToFolder(DriveId folderId) {
-        setUiInteractionsEnabled(false);
         mNavigationPath.push(folderId);
-        Task<Void> navigationTask = updateUiAfterTask(Tasks.forResult(null));
-        handleTaskError(navigationTask, R.string.change_folder_error);
+        showCurrentFolder();
     }
 
     /**
      * Returns to previous folder view if available.
      */
     private void navigateBack() {
-        setUiInteractionsEnabled(false);
         mNavigationPath.pop();
-        Task<Void> navigationTask = updateUiAfterTask(Tasks.forResult(null));
+        showCurrentFolder();
+    }
+
+    /**
+     * Shows the current folder, at once if a snapshot of it is cached, and reloads it from Drive.
+     * A folder still being prefetched is shown once that load completes, without loading it
+     * again. The UI is only disabled while a folder which is not cached loads.
+     */
+    private void showCurrentFolder() {
+        DriveId folderId = mNavigationPath.peek();
+        cancelFolderSizeScan();
+        mFolderPrefetcher.onFolderOpened(folderId);
+        FolderCache.Snapshot snapshot = mFolderCache.get(folderId);
+        Task<FolderCache.Snapshot> prefetch = mFolderPrefetcher.getRunningLoad(folderId);
+        Task<Void> navigationTask;
+        if (snapshot != null) {
+            showSnapshot(snapshot);
+            setUiInteractionsEnabled(true);
+            navigationTask = loadFolder(folderId);
+        } else if (prefetch != null) {
+            setUiInteractionsEnabled(false);
+            navigationTask = prefetch.continueWithTask(task -> {
+                FolderCache.Snapshot prefetched = mFolderCache.get(folderId);
+                if (mDestroyed || !folderId.equals(mNavigationPath.peek())) {
+                    // Whatever is current now was shown by its own navigation.
+                    return Tasks.forResult(null);
+                }
+                if (prefetched == null) {
+                    // The prefetch failed, or its snapshot was too large to cache.
+                    return updateUiAfterTask(Tasks.forResult(null));
+                }
+                showSnapshot(prefetched);
+                setUiInteractionsEnabled(true);
+                return Tasks.forResult(null);
+            });
+        } else {
+            setUiInteractionsEnabled(false);
+            navigationTask = updateUiAfterTask(Tasks.forResult(null));
+        }
         handleTaskError(navigationTask, R.string.change_folder_error);
     }
 
-    private Task<Void> loadFolderNameAndContents(DriveFolder folder) {
-        return Tasks.whenAll(loadFolderName(folder), loadFolderContents(folder));
+    /**
+     * Loads the title and children of the given folder into the folder cache, and shows them if
+     * the folder is still the current one and they differ from what is shown.
+     *
+     * @param folderId folder to load
+     */
+    private Task<Void> loadFolder(DriveId folderId) {
+        return loadSnapshot(folderId).continueWith(task -> {
+            FolderCache.Snapshot snapshot = task.getResult();
+            if (mDestroyed) {
+                // The cache was already emptied, and nothing would release the listing.
+                snapshot.listing.release();
+                return null;
+            }
+            FolderCache.Snapshot cached = mFolderCache.get(folderId);
+            boolean isCurrent = folderId.equals(mNavigationPath.peek());
+            if (cached != null && cached.isSameAs(snapshot)) {
+                // Keep the cached listing, whose visible rows are already frozen.
+                snapshot.listing.release();
+                if (isCurrent) {
+                    showSnapshot(cached);
+                }
+            } else {
+                // Show the snapshot before caching it, so that the adapter's reference keeps it
+                // alive even if it is too large to stay in the cache.
+                if (isCurrent) {
+                    showSnapshot(snapshot);
+                }
+                mFolderCache.put(folderId, snapshot);
+            }
+            return null;
+        });
     }
 
-    private Task<Void> loadFolderContents(DriveFolder folder) {
-        Query folderQuery = new Query.Builder()
-                .setSortOrder(new SortOrder.Builder()
-                        .addSortAscending(SortableField.CREATED_DATE)
-                        .build())
+    /**
+     * Loads the title and children of the given folder without showing them.
+     *
+     * @param folderId folder to load
+     */
+    private Task<FolderCache.Snapshot> loadSnapshot(DriveId folderId) {
+        DriveFolder folder = folderId.asDriveFolder();
+        Task<String> nameTask = loadFolderName(folder);
+        Task<PagedListing> contentsTask = loadFolderContents(folder);
+        return Tasks.whenAll(nameTask, contentsTask).continueWith(task -> {
+            if (!task.isSuccessful()) {
+                if (contentsTask.isSuccessful()) {
+                    contentsTask.getResult().release();
+                }
+                throw task.getException();
+            }
+            return new FolderCache.Snapshot(nameTask.getResult(), contentsTask.getResult());
+        });
+    }
+
+    /**
+     * Shows the given snapshot of the current folder and starts prefetching its child folders.
+     */
+    private void showSnapshot(FolderCache.Snapshot snapshot) {
+        mCurrentFolderNameTextView.setText(snapshot.title);
+        mFileFolderAdapter.setListing(snapshot.listing);
+        mFolderPrefetcher.prefetch(mNavigationPath.peek(), snapshot.listing);
+    }
+
+    /**
+     * Lists the children of the given folder, folders first.
+     *
+     * <p>Folders and files are fetched by two queries sorted the same way, so no sorting or
+     * copying is done on the main thread; see {@link PagedListing}.</p>
+     *
+     * @param folder folder to list
+     */
+    private Task<PagedListing> loadFolderContents(DriveFolder folder) {
+        SortOrder sortOrder = new SortOrder.Builder()
+                .addSortAscending(SortableField.CREATED_DATE)
+                .build();
+        Filter isFolder = Filters.eq(SearchableField.MIME_TYPE, DriveFolder.MIME_TYPE);
+        Query foldersQuery = new Query.Builder()
+                .addFilter(isFolder)
+                .setSortOrder(sortOrder)
+                .build();
+        Query filesQuery = new Query.Builder()
+                .addFilter(Filters.not(isFolder))
+                .setSortOrder(sortOrder)
                 .build();
 
-        Task<MetadataBuffer> task = mDriveResourceClient.queryChildren(folder, folderQuery);
-        return task.continueWith(task1 -> {
-            MetadataBuffer items = task1.getResult();
-            List<Metadata> children = new ArrayList<>(items.getCount());
-            try {
-                for (int i = 0; i < items.getCount(); i++) {
-                    children.add(items.get(i).freeze());
-                }
-                // Show folders first
-                Collections.sort(children, new Comparator<Metadata>() {
-                    @Override
-                    public int compare(Metadata a, Metadata b) {
-                        int aVal = a.isFolder() ? 1 : 0;
-                        int bVal = b.isFolder() ? 1 : 0;
-                        return bVal - aVal;
+        Task<MetadataBuffer> foldersTask = mDriveResourceClient.queryChildren(folder, foldersQuery);
+        Task<MetadataBuffer> filesTask = mDriveResourceClient.queryChildren(folder, filesQuery);
+        // Build the listing off the main thread, as it reads every child once.
+        return Tasks.whenAll(foldersTask, filesTask)
+                .continueWith(AsyncTask.THREAD_POOL_EXECUTOR, task -> {
+                    if (!task.isSuccessful()) {
+                        releaseIfSuccessful(foldersTask);
+                        releaseIfSuccessful(filesTask);
+                        throw task.getException();
                     }
+                    return new PagedListing(foldersTask.getResult(), filesTask.getResult());
                 });
-                mFileFolderAdapter.setFiles(children);
-                mFileFolderAdapter.notifyDataSetChanged();
-            } finally {
-                items.release();
-            }
-            return null;
-        });
+    }
+
+    private static void releaseIfSuccessful(Task<MetadataBuffer> task) {
+        if (task.isSuccessful()) {
+            task.getResult().release();
+        }
     }
 
     /**
-     * Update the UI with the current folder name
+     * Fetches the title of the given folder.
      *
-     * @param folder currently selected folder
+     * @param folder folder whose title to fetch
      */
-    private Task<Void> loadFolderName(DriveFolder folder) {
+    private Task<String> loadFolderName(DriveFolder folder) {
         Log.i(TAG, "Fetching folder metadata for " + folder.getDriveId().encodeToString());
         Task<Metadata> getMetadataTask = mDriveResourceClient.getMetadata(folder);
-        return getMetadataTask.continueWith(task -> {
-            mCurrentFolderNameTextView.setText(task.getResult().getTitle());
-            return null;
-        });
+        return getMetadataTask.continueWith(task -> task.getResult().getTitle());
     }
 
     private <T> Task<Void> updateUiAfterTask(Task<T> task) {
-        Task<Void> loadFolderTask = task.continueWithTask(task1 -> {
-            DriveFolder currentFolder = mNavigationPath.peek().asDriveFolder();
-            return loadFolderNameAndContents(currentFolder);
-        });
+        // Any size shown for the folder may be out of date once the task completes.
+        cancelFolderSizeScan();
+        Task<Void> loadFolderTask =
+                task.continueWithTask(task1 -> loadFolder(mNavigationPath.peek()));
         // Wait till Metadata is loaded to allow user interaction.
         loadFolderTask.addOnCompleteListener(task12 -> setUiInteractionsEnabled(true));
         return loadFolderTask;
@@ -366,13 +598,49 @@ public class MainActivity extends FragmentActivity {
     }
 
     private void showMessage(int resourceId) {
-        String message = getResources().getString(resourceId);
+        showMessage(getResources().getString(resourceId));
+    }
+
+    private void showMessage(String message) {
         Log.i(TAG, message);
         Toast.makeText(this, message, Toast.LENGTH_LONG).show();
     }
 
+    /**
+     * Totals the files and bytes under the current folder, showing the running totals as the tree
+     * is walked. Folders unchanged since an earlier scan are not listed again.
+     */
+    private void analyzeCurrentFolder() {
+        cancelFolderSizeScan();
+        mFolderSizeScan = mFolderSizeAnalyzer.scan(mNavigationPath.peek(),
+                (partial, pendingFolders) -> showFolderSize(partial, pendingFolders > 0));
+        Task<FolderSizeAnalyzer.Summary> scanTask = mFolderSizeScan.getTask()
+                .addOnSuccessListener(this, summary -> Log.i(TAG, "Folder size: " + summary
+                        + ", listed=" + mFolderSizeAnalyzer.getListedCount()
+                        + ", reused=" + mFolderSizeAnalyzer.getReusedCount()));
+        handleTaskError(scanTask, R.string.unexpected_error);
+    }
+
+    private void cancelFolderSizeScan() {
+        if (mFolderSizeScan != null) {
+            mFolderSizeScan.cancel();
+            mFolderSizeScan = null;
+        }
+        mFolderSizeTextView.setText(null);
+    }
+
+    private void showFolderSize(FolderSizeAnalyzer.Summary summary, boolean inProgress) {
+        String size = getString(R.string.folder_size, summary.fileCount, summary.folderCount,
+                Formatter.formatShortFileSize(this, summary.totalBytes),
+                summary.getUntrashedFileCount(),
+                Formatter.formatShortFileSize(this, summary.getUntrashedBytes()));
+        mFolderSizeTextView.setText(
+                inProgress ? getString(R.string.folder_size_in_progress, size) : size);
+    }
+
     private void setUiInteractionsEnabled(boolean enabled) {
         mAddFileButton.setEnabled(enabled);
+        mAnalyzeButton.setEnabled(enabled);
         mAddFolderButton.setEnabled(enabled);
         mFileFolderAdapter.setEnabled(enabled);
         mPreviousFolderButton.setEnabled(enabled && mNavigationPath.size() > 1);
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.samples.drive.trash;
+
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.drive.MetadataBuffer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The children of a folder, folders first, read lazily from the buffers of two queries.
+ *
+ * <p>Items are frozen a page at a time as they are first displayed, and only the most recently
+ * used pages are kept, so the cost of showing a folder does not grow with the number of its
+ * children. A page is also frozen ahead of time once a row near its edge is displayed.</p>
+ *
+ * <p>Apart from their construction, listings must only be used on the main thread. A listing is
+ * shared by reference counting: each holder that calls {@link #acquire()} must call {@link
+ * #release()} when done, and the buffers are released along with the last reference.</p>
+ */
+class PagedListing {
+    private static final int PAGE_SIZE = 50;
+    // Rows this close to the edge of a page cause the neighboring page to be frozen as well.
+    private static final int PREFETCH_MARGIN = 15;
+    private static final int MAX_PAGES = 4;
+
+    private final MetadataBuffer folders;
+    private final MetadataBuffer files;
+    private final int folderCount;
+    private final int count;
+    private final long fingerprint;
+    private int references = 1;
+
+    // Page index to the page's frozen items, in least recently used order.
+    private final Map<Integer, Metadata[]> pages =
+            new LinkedHashMap<Integer, Metadata[]>(MAX_PAGES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Metadata[]> eldest) {
+                    return size() > MAX_PAGES;
+                }
+            };
+
+    /**
+     * Creates a listing of the children in {@code folders} followed by those in {@code files},
+     * holding one reference. The listing takes ownership of both buffers.
+     *
+     * <p>Every child is read once to compute the listing's fingerprint, so listings should be
+     * created off the main thread.</p>
+     */
+    PagedListing(MetadataBuffer folders, MetadataBuffer files) {
+        this.folders = folders;
+        this.files = files;
+        folderCount = folders.getCount();
+        count = folderCount + files.getCount();
+        fingerprint = 31 * fingerprintOf(folders) + fingerprintOf(files);
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the number of children which are folders, all listed before the files.
+     */
+    int getFolderCount() {
+        return folderCount;
+    }
+
+    /**
+     * Returns the frozen item at {@code position}.
+     */
+    Metadata get(int position) {
+        if (position < 0 || position >= count) {
+            throw new IndexOutOfBoundsException("Position " + position + " of " + count);
+        }
+        int page = position / PAGE_SIZE;
+        int offset = position % PAGE_SIZE;
+        Metadata item = getPage(page)[offset];
+        if (offset >= PAGE_SIZE - PREFETCH_MARGIN && (page + 1) * PAGE_SIZE < count) {
+            getPage(page + 1);
+        } else if (offset < PREFETCH_MARGIN && page > 0) {
+            getPage(page - 1);
+        }
+        return item;
+    }
+
+    /**
+     * Returns whether {@code other} lists the same children, with the same titles, trash states
+     * and modification dates, in the same order, as far as their 64-bit fingerprints can tell.
+     */
+    boolean hasSameChildren(PagedListing other) {
+        return count == other.count && fingerprint == other.fingerprint;
+    }
+
+    /**
+     * Adds a reference to the listing and returns it.
+     */
+    PagedListing acquire() {
+        references++;
+        return this;
+    }
+
+    /**
+     * Drops a reference to the listing, releasing the query buffers once none remain. Items
+     * already returned stay usable.
+     */
+    void release() {
+        if (--references == 0) {
+            folders.release();
+            files.release();
+            pages.clear();
+        }
+    }
+
+    private static long fingerprintOf(MetadataBuffer buffer) {
+        long fingerprint = 0;
+        for (Metadata metadata : buffer) {
+            fingerprint = 31 * fingerprint + metadata.getDriveId().hashCode();
+            fingerprint = 31 * fingerprint + metadata.getTitle().hashCode();
+            fingerprint = 31 * fingerprint + (metadata.isTrashed() ? 1 : 0);
+            fingerprint = 31 * fingerprint + metadata.getModifiedDate().getTime();
+        }
+        return fingerprint;
+    }
+
+    private Metadata[] getPage(int page) {
+        Metadata[] items = pages.get(page);
+        if (items == null) {
+            int start = page * PAGE_SIZE;
+            items = new Metadata[Math.min(PAGE_SIZE, count - start)];
+            for (int i = 0; i < items.length; i++) {
+                int position = start + i;
+                items[i] = position < folderCount
+                        ? folders.get(position).freeze()
+                        : files.get(position - folderCount).freeze();
+            }
+            pages.put(page, items);
+        }
+        return items;
+    }
+}